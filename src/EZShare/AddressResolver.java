@@ -0,0 +1,115 @@
+/**
+ * The class resolves the hostnames of ServerBeans and caches the answers, successful ones for
+ * ServerInfo.dnsTtl and failed ones for ServerInfo.dnsNegativeTtl. Only a hostname that was never
+ * resolved blocks the caller; an expired answer is still returned while a background thread
+ * refreshes it, so a slow DNS server doesn't stall queries and exchanges. A failed refresh keeps
+ * the last good address.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+public class AddressResolver {
+	private static Logger logger = Logger.getLogger(AddressResolver.class);
+
+	private Map<String, Entry> cache;
+	private ExecutorService refresher;
+
+	private AddressResolver() {
+		cache = new ConcurrentHashMap<>();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "address-resolver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		refresher = executor;
+	}
+
+	// created on first use, class initialization makes it safe to publish without a lock
+	private static class Holder {
+		private static final AddressResolver resolver = new AddressResolver();
+	}
+
+	public static AddressResolver getInstance() {
+		return Holder.resolver;
+	}
+
+	/**
+	 * The method returns the address of a hostname. It only blocks the first time a hostname is seen,
+	 * concurrent callers for the same hostname wait for the same lookup.
+	 * @param hostname
+	 * @return address or null if the hostname could not be resolved
+	 */
+	public InetAddress resolve(String hostname) {
+		Entry entry = cache.computeIfAbsent(hostname, key -> new Entry());
+		if (!entry.resolved) {
+			synchronized (entry) {
+				if (!entry.resolved) {
+					entry.update(lookup(hostname));
+				}
+			}
+		}
+		if (entry.isExpired() && entry.refreshing.compareAndSet(false, true)) {
+			refresher.execute(() -> {
+				try {
+					entry.update(lookup(hostname));
+				} finally {
+					entry.refreshing.set(false);
+				}
+			});
+		}
+		return entry.address;
+	}
+
+	/**
+	 * The method returns the cached address of a hostname without ever resolving it.
+	 * @param hostname
+	 * @return address or null if it is not cached or could not be resolved
+	 */
+	public InetAddress peek(String hostname) {
+		Entry entry = cache.get(hostname);
+		return entry == null ? null : entry.address;
+	}
+
+	private static InetAddress lookup(String hostname) {
+		try {
+			return InetAddress.getByName(hostname);
+		} catch (UnknownHostException e) {
+			logger.debug("Could not resolve: " + hostname);
+			return null;
+		}
+	}
+
+	private static class Entry {
+		private volatile InetAddress address;
+		private volatile long expiresAt;
+		private volatile boolean resolved = false;
+		private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+		// a failed refresh keeps the last good address and is retried after the negative ttl
+		void update(InetAddress address) {
+			if (address != null || !resolved)
+				this.address = address;
+			this.expiresAt = System.currentTimeMillis() + (address == null ? ServerInfo.dnsNegativeTtl : ServerInfo.dnsTtl) * 1000L;
+			this.resolved = true;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() > expiresAt;
+		}
+	}
+}
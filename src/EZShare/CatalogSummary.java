@@ -0,0 +1,163 @@
+/**
+ * The class is a Bloom filter of the (channel), (channel, tag) and (channel, uri) keys of a catalog.
+ * The summary of this server counts how many resources set each bit, so it follows publish, share
+ * and remove without being rebuilt; only the bits are sent to the other servers, with a version that
+ * changes with them. A query needs its channel, each of its tags and its uri to be in the summary of
+ * a server to match anything there, so a server whose summary lacks one of them is not relayed to.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+public class CatalogSummary {
+	private static final int HASHES = 4;
+
+	private final long[] words;
+	private final byte[] counters;     // null in the summary of another server
+	private long version;
+	private volatile long receivedAt;
+
+	/**
+	 * The constructor creates the empty summary of this server.
+	 * @param bits the size of the filter, a multiple of 64
+	 * @param version the first version, e.g. the start time, so that a restart is seen as a change
+	 */
+	public CatalogSummary(int bits, long version) {
+		this.words = new long[Math.max(1, bits / 64)];
+		this.counters = new byte[words.length * 64];
+		this.version = version;
+	}
+
+	private CatalogSummary(long[] words, long version) {
+		this.words = words;
+		this.counters = null;
+		this.version = version;
+		this.receivedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * The method decodes the summary sent by another server.
+	 * @param bits the filter in base64
+	 * @param version
+	 * @return summary or null if it can't be decoded
+	 */
+	public static CatalogSummary parse(String bits, long version) {
+		byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(bits);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (bytes.length == 0 || bytes.length % 8 != 0)
+			return null;
+		long[] words = new long[bytes.length / 8];
+		for (int i = 0; i < bytes.length; i++) {
+			words[i / 8] |= (bytes[i] & 0xffL) << (8 * (i % 8));
+		}
+		return new CatalogSummary(words, version);
+	}
+
+	public synchronized void add(Resource resource) {
+		for (String key : keys(resource)) {
+			for (int position : positions(key)) {
+				if (counters[position] != -1)     // saturated counters are never decremented
+					counters[position]++;
+				words[position >>> 6] |= 1L << position;
+			}
+		}
+		version++;
+	}
+
+	public synchronized void remove(Resource resource) {
+		for (String key : keys(resource)) {
+			for (int position : positions(key)) {
+				if (counters[position] != -1 && counters[position] != 0 && --counters[position] == 0)
+					words[position >>> 6] &= ~(1L << position);
+			}
+		}
+		version++;
+	}
+
+	/**
+	 * The method tells whether a query template may match a resource of the catalog.
+	 * @param template the relayed template, tags in lower case
+	 * @return false only if no resource of the catalog can match
+	 */
+	public synchronized boolean mightMatch(Resource template) {
+		String channel = template.getChannel();
+		if (!contains("c" + channel))
+			return false;
+		for (String tag : template.getTags()) {
+			if (!contains("t" + channel + "\0" + tag.toLowerCase()))
+				return false;
+		}
+		String uri = template.getUri() == null ? "" : template.getUri().toString();
+		return uri.equals("") || contains("u" + channel + "\0" + uri);
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return when the summary of another server arrived, in System.currentTimeMillis() time
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	// the server sent nothing new, what we have is still current
+	public void touch() {
+		receivedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the bits in base64
+	 */
+	public synchronized String toBase64() {
+		byte[] bytes = new byte[words.length * 8];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (words[i / 8] >>> (8 * (i % 8)));
+		}
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+	private boolean contains(String key) {
+		for (int position : positions(key)) {
+			if ((words[position >>> 6] & (1L << position)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// the tags are matched in lower case by the query
+	private static List<String> keys(Resource resource) {
+		String channel = resource.getChannel();
+		List<String> keys = new ArrayList<>();
+		keys.add("c" + channel);
+		for (String tag : resource.getTags()) {
+			keys.add("t" + channel + "\0" + tag.toLowerCase());
+		}
+		if (resource.getUri() != null)
+			keys.add("u" + channel + "\0" + resource.getUri().toString());
+		return keys;
+	}
+
+	// double hashing over the two halves of one 64 bit hash
+	private int[] positions(String key) {
+		long hash = Membership.mix(Membership.fnv(key));
+		int first = (int) hash;
+		int second = (int) (hash >>> 32) | 1;
+		int bits = words.length * 64;
+		int[] positions = new int[HASHES];
+		for (int i = 0; i < HASHES; i++) {
+			positions[i] = Math.floorMod(first + i * second, bits);
+		}
+		return positions;
+	}
+}
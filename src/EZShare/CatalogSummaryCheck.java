@@ -0,0 +1,87 @@
+/**
+ * The class checks CatalogSummary in memory: a catalog of n resources, each in its own channel with
+ * one tag and one uri, is added to a summary of ServerInfo.summaryBits bits, then every resource must
+ * match (no false negatives), the summary sent to another server must answer the same, and the share
+ * of absent channels that still match is the false positive rate, printed next to the rate expected
+ * of a Bloom filter, (1 - e^(-k * keys / bits))^k. Removing every resource must leave an empty summary.
+ * The hashes are fixed, so the figures are the same on every run.
+ * Usage: java EZShare.CatalogSummaryCheck
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class CatalogSummaryCheck {
+	private static final int[] CATALOG_SIZES = {100, 300, 1000, 3000};
+	private static final int PROBES = 100000;
+	private static final int HASHES = 4;     // as CatalogSummary
+
+	public static void main(String[] args) {
+		boolean passed = true;
+		System.out.println(ServerInfo.summaryBits + " bits, " + HASHES + " hashes, " + PROBES + " absent channels probed");
+		for (int size : CATALOG_SIZES) {
+			passed &= check(size);
+		}
+		System.out.println(passed ? "passed" : "FAILED");
+		if (!passed)
+			System.exit(1);
+	}
+
+	private static boolean check(int size) {
+		boolean passed = true;
+		CatalogSummary summary = new CatalogSummary(ServerInfo.summaryBits, 0);
+		List<Resource> resources = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			Resource resource = resource("channel" + i, "tag" + i, "http://example.com/" + i);
+			resources.add(resource);
+			summary.add(resource);
+		}
+		CatalogSummary received = CatalogSummary.parse(summary.toBase64(), summary.getVersion());
+		for (Resource resource : resources) {
+			if (!summary.mightMatch(resource) || !received.mightMatch(resource)) {
+				System.out.println(size + " resources: false negative for " + resource.getChannel());
+				passed = false;
+			}
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < PROBES; i++) {
+			Resource template = resource("absent" + i, null, null);
+			boolean match = summary.mightMatch(template);
+			if (match != received.mightMatch(template)) {
+				System.out.println(size + " resources: the received summary differs for absent" + i);
+				passed = false;
+			}
+			if (match)
+				falsePositives++;
+		}
+		// each resource adds its channel, its tag and its uri
+		double keys = 3.0 * size;
+		double expected = Math.pow(1 - Math.exp(-HASHES * keys / ServerInfo.summaryBits), HASHES);
+		System.out.printf("%d resources: false positive rate %.4f, expected %.4f%n", size, (double) falsePositives / PROBES, expected);
+		for (Resource resource : resources) {
+			summary.remove(resource);
+		}
+		if (!summary.toBase64().equals(new CatalogSummary(ServerInfo.summaryBits, 0).toBase64())) {
+			System.out.println(size + " resources: bits left after removing every resource");
+			passed = false;
+		}
+		return passed;
+	}
+
+	static Resource resource(String channel, String tag, String uri) {
+		Resource resource = new Resource();
+		resource.setName("");
+		resource.setDescription("");
+		resource.setTags(tag == null ? Collections.emptyList() : Collections.singletonList(tag));
+		resource.setUri(uri == null ? null : URI.create(uri));
+		resource.setChannel(channel);
+		resource.setOwner("");
+		return resource;
+	}
+}
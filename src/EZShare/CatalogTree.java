@@ -0,0 +1,226 @@
+/**
+ * The class is a Merkle tree over the catalog, used to keep replicas in step. Each resource, or the
+ * tombstone left by its removal, falls in one of 16^ServerInfo.syncDepth leaves by its owner, channel
+ * and uri. The hash of a node is the xor of the hashes of the entries below it, so a change updates one
+ * node per level instead of rebuilding the tree. Two replicas compare the hashes level by level from the
+ * root, descend only into the nodes that differ and then swap the entries of the differing leaves; the
+ * entry modified last wins.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class CatalogTree {
+	public static final int FANOUT = 16;
+
+	private final int depth;
+	private final long[][] levels;
+	private final List<Map<String, Entry>> leaves;
+
+	/**
+	 * @param depth levels below the root, the tree has 16^depth leaves
+	 */
+	public CatalogTree(int depth) {
+		this.depth = depth;
+		this.levels = new long[depth + 1][];
+		for (int level = 0; level <= depth; level++) {
+			levels[level] = new long[1 << (4 * level)];
+		}
+		this.leaves = new ArrayList<>(levels[depth].length);
+		for (int i = 0; i < levels[depth].length; i++) {
+			leaves.add(new HashMap<>());
+		}
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * The method records a published or shared resource.
+	 * @param resource
+	 * @param modified when it changed, in System.currentTimeMillis() time
+	 */
+	public synchronized void put(Resource resource, long modified) {
+		replace(new Entry(resource, modified, false));
+	}
+
+	/**
+	 * The method records the removal of a resource as a tombstone, so that it is removed from the replicas too.
+	 * @param resource
+	 * @param modified when it was removed, in System.currentTimeMillis() time
+	 */
+	public synchronized void delete(Resource resource, long modified) {
+		replace(new Entry(resource, modified, true));
+	}
+
+	/**
+	 * The method tells whether an entry of a replica is more recent than ours.
+	 * @param entry
+	 * @return true if the entry should be applied
+	 */
+	public synchronized boolean isNewer(Entry entry) {
+		Entry current = leaves.get(leaf(entry)).get(entry.key);
+		if (current == null)
+			return !entry.deleted || entry.modified > System.currentTimeMillis() - ServerInfo.tombstoneTtl * 1000L;
+		if (entry.modified != current.modified)
+			return entry.modified > current.modified;
+		return entry.deleted && !current.deleted;     // a removal wins a tie
+	}
+
+	/**
+	 * @param level 0 for the root, getDepth() for the leaves
+	 * @param nodes the indexes of the nodes in the level
+	 * @return the hashes of the nodes in hex
+	 */
+	public synchronized List<String> getHashes(int level, List<Integer> nodes) {
+		List<String> hashes = new ArrayList<>(nodes.size());
+		for (int node : nodes) {
+			hashes.add(Long.toHexString(node >= 0 && node < levels[level].length ? levels[level][node] : 0));
+		}
+		return hashes;
+	}
+
+	/**
+	 * The method compares the hashes of a replica with ours.
+	 * @param level
+	 * @param nodes the indexes of the nodes in the level
+	 * @param hashes the hashes of the replica for the same nodes, in hex
+	 * @return the nodes that differ, a hash missing or not valid hex differs
+	 */
+	public synchronized List<Integer> differingNodes(int level, List<Integer> nodes, List<String> hashes) {
+		List<Integer> differing = new ArrayList<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			if (i >= hashes.size() || !sameHash(levels[level][nodes.get(i)], hashes.get(i)))
+				differing.add(nodes.get(i));
+		}
+		return differing;
+	}
+
+	private static boolean sameHash(long hash, String hex) {
+		try {
+			return hex != null && hash == Long.parseUnsignedLong(hex, 16);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param nodes nodes of one level
+	 * @return the children of the nodes in the next level
+	 */
+	public static List<Integer> children(List<Integer> nodes) {
+		List<Integer> children = new ArrayList<>(nodes.size() * FANOUT);
+		for (int node : nodes) {
+			for (int i = 0; i < FANOUT; i++) {
+				children.add(node * FANOUT + i);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * @param leafIndexes
+	 * @return the resources and tombstones of the leaves
+	 */
+	public synchronized List<Entry> getEntries(List<Integer> leafIndexes) {
+		List<Entry> entries = new ArrayList<>();
+		for (int leaf : leafIndexes) {
+			if (leaf >= 0 && leaf < leaves.size())
+				entries.addAll(leaves.get(leaf).values());
+		}
+		return entries;
+	}
+
+	/**
+	 * The method forgets the tombstones older than ServerInfo.tombstoneTtl. A replica that was away
+	 * for longer than that may bring a removed resource back.
+	 */
+	public synchronized void purgeTombstones() {
+		long before = System.currentTimeMillis() - ServerInfo.tombstoneTtl * 1000L;
+		for (Map<String, Entry> leaf : leaves) {
+			Iterator<Entry> iterator = leaf.values().iterator();
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next();
+				if (entry.deleted && entry.modified < before) {
+					iterator.remove();
+					hash(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The method writes entries as a json array of modified, deleted and resource.
+	 * @param entries
+	 * @param builder
+	 */
+	public static void writeEntries(List<Entry> entries, StringBuilder builder) {
+		builder.append('[');
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			if (i > 0) builder.append(',');
+			builder.append("{\"modified\":").append(entry.modified).append(",\"deleted\":").append(entry.deleted).append(",\"resource\":");
+			JsonWriter.writeResource(entry.resource, builder);
+			builder.append('}');
+		}
+		builder.append(']');
+	}
+
+	private void replace(Entry entry) {
+		Entry previous = leaves.get(leaf(entry)).put(entry.key, entry);
+		if (previous != null)
+			hash(previous);
+		hash(entry);
+	}
+
+	// xor the entry in or out of its leaf and every node above it
+	private void hash(Entry entry) {
+		int node = leaf(entry);
+		for (int level = depth; level >= 0; level--) {
+			levels[level][node] ^= entry.hash;
+			node /= FANOUT;
+		}
+	}
+
+	private int leaf(Entry entry) {
+		return depth == 0 ? 0 : (int) (entry.keyHash >>> (64 - 4 * depth));
+	}
+
+	public static class Entry {
+		private final Resource resource;
+		private final long modified;
+		private final boolean deleted;
+		private final String key;
+		private final long keyHash;
+		private final long hash;
+
+		public Entry(Resource resource, long modified, boolean deleted) {
+			this.resource = resource;
+			this.modified = modified;
+			this.deleted = deleted;
+			this.key = resource.getOwner() + "\0" + resource.getChannel() + "\0" + resource.getUri();
+			this.keyHash = Membership.mix(Membership.fnv(key));
+			this.hash = Membership.mix(keyHash ^ Membership.mix(modified << 1 | (deleted ? 1 : 0)));
+		}
+
+		public Resource getResource() {
+			return resource;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+	}
+}
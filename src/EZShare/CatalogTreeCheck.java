@@ -0,0 +1,150 @@
+/**
+ * The class checks the SYNC of two replicas in memory. Both catalog trees get the same n resources,
+ * then a few differences: resources only one side has, a resource modified later on one side and a
+ * resource removed on one side. The trees are compared as ServerCore.synchronize does, with the hashes
+ * in hex as they are sent, then the entries of the differing leaves are swapped as SYNC swaps them.
+ * The check counts the hashes and entries sent, then requires the roots to match, every difference to
+ * have gone the way of the entry modified last, and a second comparison to stop at the root. It also
+ * requires a hash that is not valid hex to count as differing. Modification times are fixed, so the
+ * figures are the same on every run.
+ * Usage: java EZShare.CatalogTreeCheck [resources, 100000 by default]
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CatalogTreeCheck {
+	private static final long MODIFIED = 1000000;
+
+	private int hashes = 0;
+	private int leaves = 0;
+	private int entries = 0;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		boolean passed = new CatalogTreeCheck().check(size);
+		System.out.println(passed ? "passed" : "FAILED");
+		if (!passed)
+			System.exit(1);
+	}
+
+	private boolean check(int size) {
+		boolean passed = true;
+		CatalogTree local = new CatalogTree(ServerInfo.syncDepth);
+		CatalogTree replica = new CatalogTree(ServerInfo.syncDepth);
+		for (int i = 0; i < size; i++) {
+			local.put(resource(i), MODIFIED);
+			replica.put(resource(i), MODIFIED);
+		}
+		// 11 differences: 5 resources only here, 4 only on the replica, one newer there, one removed here
+		for (int i = 0; i < 5; i++) {
+			local.put(resource(size + i), MODIFIED);
+		}
+		for (int i = 5; i < 9; i++) {
+			replica.put(resource(size + i), MODIFIED);
+		}
+		replica.put(resource(1), MODIFIED + 1);
+		local.delete(resource(2), MODIFIED + 1);
+		System.out.println(size + " resources, 11 differences, " + (1 << (4 * ServerInfo.syncDepth)) + " leaves");
+
+		synchronize(local, replica);
+		System.out.println("sent " + hashes + " hashes, " + leaves + " leaves, " + entries + " entries");
+		if (!root(local).equals(root(replica))) {
+			System.out.println("the roots differ after the sync");
+			passed = false;
+		}
+		for (int i = 0; i < 9; i++) {
+			if (!has(local, size + i, false) || !has(replica, size + i, false)) {
+				System.out.println("resource " + (size + i) + " is missing on one side");
+				passed = false;
+			}
+		}
+		if (!has(local, 1, false) || entry(local, 1).getModified() != MODIFIED + 1) {
+			System.out.println("the newer copy of resource 1 was not taken");
+			passed = false;
+		}
+		if (!has(replica, 2, true)) {
+			System.out.println("the removal of resource 2 was not taken");
+			passed = false;
+		}
+
+		hashes = leaves = entries = 0;
+		synchronize(local, replica);
+		System.out.println("then " + hashes + " hash to find the replicas agree");
+		if (hashes != 1 || leaves != 0) {
+			System.out.println("replicas that agree should cost one hash");
+			passed = false;
+		}
+
+		List<Integer> root = Collections.singletonList(0);
+		if (local.differingNodes(0, root, Arrays.asList("not hex")).size() != 1
+				|| local.differingNodes(0, root, Collections.emptyList()).size() != 1) {
+			System.out.println("a malformed or missing hash should differ");
+			passed = false;
+		}
+		return passed;
+	}
+
+	// as ServerCore.synchronize on this side and ServerCommandProcessor.sync on the replica
+	private void synchronize(CatalogTree local, CatalogTree replica) {
+		List<Integer> nodes = Collections.singletonList(0);
+		for (int level = 0; level <= local.getDepth(); level++) {
+			List<String> replicaHashes = replica.getHashes(level, nodes);
+			hashes += replicaHashes.size();
+			nodes = local.differingNodes(level, nodes, replicaHashes);
+			if (nodes.size() == 0)
+				return;
+			if (level < local.getDepth())
+				nodes = CatalogTree.children(nodes);
+		}
+		leaves += nodes.size();
+		List<CatalogTree.Entry> sent = local.getEntries(nodes);
+		entries += sent.size();
+		apply(replica, sent);
+		List<CatalogTree.Entry> received = replica.getEntries(nodes);
+		entries += received.size();
+		apply(local, received);
+	}
+
+	// as ServerCommandProcessor.applyReplicated does to the tree
+	private static void apply(CatalogTree tree, List<CatalogTree.Entry> entries) {
+		for (CatalogTree.Entry entry : entries) {
+			if (!tree.isNewer(entry))
+				continue;
+			if (entry.isDeleted())
+				tree.delete(entry.getResource(), entry.getModified());
+			else
+				tree.put(entry.getResource(), entry.getModified());
+		}
+	}
+
+	private static String root(CatalogTree tree) {
+		return tree.getHashes(0, Collections.singletonList(0)).get(0);
+	}
+
+	private static boolean has(CatalogTree tree, int i, boolean deleted) {
+		CatalogTree.Entry entry = entry(tree, i);
+		return entry != null && entry.isDeleted() == deleted;
+	}
+
+	// the entry of resource i, looked up in every leaf since the leaf is private to the tree
+	private static CatalogTree.Entry entry(CatalogTree tree, int i) {
+		String uri = resource(i).getUri().toString();
+		for (int leaf = 0; leaf < 1 << (4 * tree.getDepth()); leaf++) {
+			for (CatalogTree.Entry entry : tree.getEntries(Collections.singletonList(leaf))) {
+				if (entry.getResource().getUri().toString().equals(uri))
+					return entry;
+			}
+		}
+		return null;
+	}
+
+	private static Resource resource(int i) {
+		return CatalogSummaryCheck.resource("channel" + (i % 100), "tag", "http://example.com/" + i);
+	}
+}
@@ -96,6 +96,7 @@ public class Client {
 		SSLContext sslContext = SSLContext.getInstance("SSL");
 		sslContext.init(keyManagers, trustManagers, null);
 		SSLContext.setDefault(sslContext);    
+		SSLConfig.init(sslContext);     // built once, shared by every secure socket
 	}
 }
 
@@ -13,15 +13,15 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import org.apache.log4j.Logger;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
 
 public class ClientConnection { 
 	private static Logger logger = Logger.getLogger(ClientConnection.class);
@@ -41,31 +41,26 @@ public class ClientConnection {
 		
 		try {
 			if(secure) {
-				SSLContext context = null;
-				try {
-					context = SSLContext.getDefault();
-				} catch (NoSuchAlgorithmException e) { 
-					e.printStackTrace();
-				}
-				SSLSocketFactory sslsocketfactory = (SSLSocketFactory) context.getSocketFactory(); 
+				SSLSocketFactory sslsocketfactory = SSLConfig.getSocketFactory(); 
 				socket = (SSLSocket) sslsocketfactory.createSocket(serverBean.getAddress(), serverBean.getPort());
 			} else {
 				socket = new Socket(serverBean.getAddress(), serverBean.getPort());
 			}	
 			 
 			socket.setSoTimeout(ServerInfo.timeout * 1000);
-			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-			outputStream.writeUTF(message.getMessage());
-			outputStream.flush();
+			MessageStream messageStream = new MessageStream(new DataInputStream(socket.getInputStream()), new DataOutputStream(socket.getOutputStream()));
+			messageStream.setMaxFrameSize(ServerInfo.maxPeerFrameSize);     // replies of the server asked
+			messageStream.writeMessage(negotiateFraming(message.getMessage()));
+			messageStream.flush();
 			
 			logger.info("SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getMessage());
-			String data = null; 
+			String data = messageStream.readNegotiation(); 
 			try { 
-				while((data = inputStream.readUTF())!= null) { 
+				while(data != null || (data = messageStream.readMessage()) != null) { 
 					logger.info("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + data);
 					response = new Message(MessageType.STRING, data, null, null);
 					messages.add(response);
+					data = null;
 				} 
 			} catch(EOFException e) {
 				logger.debug("All message has been received");
@@ -90,26 +85,28 @@ public class ClientConnection {
 		try {
 			Socket socket = null;
 			if (secure) { 
-				SSLSocketFactory sslsocketfactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+				SSLSocketFactory sslsocketfactory = SSLConfig.getSocketFactory();
 				socket = (SSLSocket) sslsocketfactory.createSocket(serverBean.getAddress(), serverBean.getPort());
 			} else {
 				socket = new Socket(serverBean.getAddress(),serverBean.getPort());
 			}
 			
 			BufferedReader sysReader = new BufferedReader(new InputStreamReader(System.in));
-			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-			outputStream.writeUTF(message.getMessage());
-			outputStream.flush();
+			MessageStream messageStream = new MessageStream(new DataInputStream(socket.getInputStream()), new DataOutputStream(socket.getOutputStream()));
+			messageStream.setMaxFrameSize(ServerInfo.maxPeerFrameSize);     // replies of the server asked
+			messageStream.writeMessage(negotiateFraming(message.getMessage()));
+			messageStream.flush();
 			
 			new Thread(new Runnable() {
 				@Override
 				public void run() {
 					String string = null;
 					try {
-						while((string = inputStream.readUTF()) != null) {
+						string = messageStream.readNegotiation();
+						while(string != null || (string = messageStream.readMessage()) != null) {
 							Message response = new Message(string);
 							if(messageListener.onMessageReceived(response)) break;
+							string = null;
 						}
 					} catch (IOException e) {
 						//e.printStackTrace();
@@ -123,7 +120,7 @@ public class ClientConnection {
 					String string = null;
 					try {
 						while((string = sysReader.readLine()) != null) {
-							if(keyboardListener.onKeyPressed(outputStream,string)) break;
+							if(keyboardListener.onKeyPressed(messageStream,string)) break;
 						}
 					} catch (IOException e) {
 						//e.printStackTrace();
@@ -135,8 +132,17 @@ public class ClientConnection {
 		}
 	}
 	
+	// asks the server for length-prefixed framing, older servers ignore it
+	private static String negotiateFraming(String command) {
+		try {
+			return MessageStream.withFraming(new JSONObject(command), false);
+		} catch (JSONException e) {
+			return command;
+		}
+	}
+	
 	interface KeyboardListener {
-		boolean onKeyPressed(DataOutputStream outputStream, String string);
+		boolean onKeyPressed(MessageStream messageStream, String string);
 	}
 	
 	interface MessageListener {
@@ -9,7 +9,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 import org.apache.commons.cli.CommandLine; 
 import org.apache.log4j.Level;
@@ -268,10 +267,10 @@ public class ClientCore {
 		
 		ClientConnection.establishPersistentConnection(targetServer, new Message(subscribeJsonObject.toString()), new ClientConnection.KeyboardListener() {
 			@Override
-			public boolean onKeyPressed(DataOutputStream outputStream, String string) {
+			public boolean onKeyPressed(MessageStream messageStream, String string) {
 				try {
-					outputStream.writeUTF(unsubscribeJsonObject.toString());
-					outputStream.flush();
+					messageStream.writeMessage(unsubscribeJsonObject.toString());
+					messageStream.flush();
 					logger.info("SENT: " + (secure ? "(secure) " : "(insecure) ") + unsubscribeJsonObject.toString());
 				} catch (IOException e) {
 					//e.printStackTrace();
@@ -373,7 +372,7 @@ public class ClientCore {
 			if (!secure) {
 				socket = new Socket(targetServer.getHostname(), targetServer.getPort());
 			} else {
-				socket= (SSLSocket) SSLSocketFactory.getDefault().createSocket(targetServer.getHostname(),targetServer.getPort());
+				socket= (SSLSocket) SSLConfig.getSocketFactory().createSocket(targetServer.getHostname(),targetServer.getPort());
 			}
 			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
 			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
@@ -0,0 +1,503 @@
+/**
+ * The class is a command sent to the server, decoded in one pass by JsonReader straight into
+ * typed fields. A field that is absent stays null (or false), so the processor can tell a missing
+ * field from an invalid one, as it did with the json object. Unknown fields are skipped.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wink.json4j.JSONException;
+
+public class Command {
+	private String command;
+	private Boolean relay;
+	private String id;
+	private String secret;
+	private boolean keepAlive;
+	private String framing;
+	private String compression;
+	private String encoding;
+	private boolean hasResource;
+	private Resource resource;
+	private boolean hasResourceTemplate;
+	private Resource resourceTemplate;
+	private List<ServerBean> serverList;
+	private List<Long> serverVersions;
+	private boolean serverListValid = true;
+	private List<String> buckets;
+	private List<Integer> need;
+	private String response;
+	private String summary;
+	private long summaryVersion;
+	private Long knownSummary;
+	private Integer level;
+	private List<Integer> nodes;
+	private List<Integer> leaves;
+	private List<String> hashes;
+	private List<CatalogTree.Entry> entries;
+	private Long fromSequence;
+	private Long epoch;
+	private Long sequence;
+	private boolean snapshot;
+	private boolean snapshotEnd;
+	private boolean deleted;
+	private boolean forwarded;
+	private boolean publicStream;
+	private Integer batchLatency;
+	private Integer batchSize;
+
+	/**
+	 * The method decodes a command.
+	 * @param json the command as a json string
+	 * @return command
+	 * @throws JSONException if it is not a json object or "command" is not a string
+	 */
+	public static Command parse(String json) throws JSONException {
+		Command command = parseReply(json);
+		if (command.command == null)
+			throw new JSONException("missing command");
+		return command;
+	}
+
+	/**
+	 * The method reads only the "command" of a command that Command.parse rejected, so the processor
+	 * can still answer it with the error of that command.
+	 * @param json the command as a json string
+	 * @return the name of the command, null if it has none or the json is broken before it
+	 */
+	public static String peekCommand(String json) {
+		try {
+			JsonReader reader = new JsonReader(json);
+			reader.beginObject();
+			while (reader.hasNextField()) {
+				if (reader.nextName().equals("command"))
+					return reader.isNextString() ? reader.nextString() : null;
+				reader.skipValue();
+			}
+		} catch (JSONException e) {
+			// no command to answer for
+		}
+		return null;
+	}
+
+	/**
+	 * The method decodes a reply from another server, which has no "command".
+	 * @param json the reply as a json string
+	 * @return reply
+	 * @throws JSONException if it is not a json object
+	 */
+	public static Command parseReply(String json) throws JSONException {
+		Command command = new Command();
+		JsonReader reader = new JsonReader(json);
+		reader.beginObject();
+		while (reader.hasNextField()) {
+			String name = reader.nextName();
+			switch (name) {
+			case "command":
+				if (!reader.isNextString())
+					throw new JSONException("command is not a string");
+				command.command = reader.nextString();
+				break;
+			case "relay":
+				command.relay = reader.nextBoolean();
+				break;
+			case "id":
+				command.id = reader.nextScalar();
+				break;
+			case "secret":
+				command.secret = reader.nextScalar();
+				break;
+			case "keepAlive":
+				command.keepAlive = reader.nextBoolean();
+				break;
+			case "framing":
+				command.framing = reader.nextScalar();
+				break;
+			case "compression":
+				command.compression = reader.nextScalar();
+				break;
+			case "encoding":
+				command.encoding = reader.nextScalar();
+				break;
+			case "resource":
+				command.hasResource = true;
+				command.resource = readResource(reader);
+				break;
+			case "resourceTemplate":
+				command.hasResourceTemplate = true;
+				command.resourceTemplate = readResource(reader);
+				break;
+			case "serverList":
+				readServerList(reader, command);
+				break;
+			case "buckets":
+				command.buckets = readStrings(reader);
+				break;
+			case "need":
+				command.need = readInts(reader);
+				break;
+			case "level":
+				command.level = reader.nextInt();
+				break;
+			case "nodes":
+				command.nodes = readInts(reader);
+				break;
+			case "leaves":
+				command.leaves = readInts(reader);
+				break;
+			case "hashes":
+				command.hashes = readStrings(reader);
+				break;
+			case "entries":
+				readEntries(reader, command);
+				break;
+			case "fromSequence":
+				command.fromSequence = reader.nextLong();
+				break;
+			case "epoch":
+				command.epoch = reader.nextLong();
+				break;
+			case "sequence":
+				command.sequence = reader.nextLong();
+				break;
+			case "snapshot":
+				command.snapshot = reader.nextBoolean();
+				break;
+			case "snapshotEnd":
+				command.snapshotEnd = reader.nextBoolean();
+				break;
+			case "deleted":
+				command.deleted = reader.nextBoolean();
+				break;
+			case "forwarded":
+				command.forwarded = reader.nextBoolean();
+				break;
+			case "public":
+				command.publicStream = reader.nextBoolean();
+				break;
+			case "batchLatency":
+				command.batchLatency = reader.nextInt();
+				break;
+			case "batchSize":
+				command.batchSize = reader.nextInt();
+				break;
+			case "response":
+				command.response = reader.nextScalar();
+				break;
+			case "summary":
+				command.summary = reader.nextScalar();
+				break;
+			case "summaryVersion":
+				command.summaryVersion = reader.nextLong();
+				break;
+			case "knownSummary":
+				command.knownSummary = reader.nextLong();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		return command;
+	}
+
+	// null unless it is an object with every resource field
+	private static Resource readResource(JsonReader reader) throws JSONException {
+		if (!reader.isNextObject()) {
+			reader.skipValue();
+			return null;
+		}
+		return Resource.parseJson(reader);
+	}
+
+	private static List<String> readStrings(JsonReader reader) throws JSONException {
+		List<String> strings = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNextElement()) {
+			strings.add(reader.nextString());
+		}
+		return strings;
+	}
+
+	private static List<Integer> readInts(JsonReader reader) throws JSONException {
+		List<Integer> ints = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNextElement()) {
+			ints.add(reader.nextInt());
+		}
+		return ints;
+	}
+
+	// the entries of a SYNC, an entry without a complete resource is skipped
+	private static void readEntries(JsonReader reader, Command command) throws JSONException {
+		command.entries = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNextElement()) {
+			Resource resource = null;
+			long modified = 0;
+			boolean deleted = false;
+			reader.beginObject();
+			while (reader.hasNextField()) {
+				String name = reader.nextName();
+				if (name.equals("resource")) {
+					resource = readResource(reader);
+				} else if (name.equals("modified")) {
+					modified = reader.nextLong();
+				} else if (name.equals("deleted")) {
+					deleted = reader.nextBoolean();
+				} else {
+					reader.skipValue();
+				}
+			}
+			if (resource != null && resource.getUri() != null)
+				command.entries.add(new CatalogTree.Entry(resource, modified, deleted));
+		}
+	}
+
+	// entries without hostname or port are skipped, entries of the wrong type make the list invalid
+	private static void readServerList(JsonReader reader, Command command) throws JSONException {
+		command.serverList = new ArrayList<>();
+		command.serverVersions = new ArrayList<>();
+		if (!reader.isNextArray()) {
+			reader.skipValue();
+			command.serverListValid = false;
+			return;
+		}
+		reader.beginArray();
+		while (reader.hasNextElement()) {
+			if (!reader.isNextObject()) {
+				reader.skipValue();
+				command.serverListValid = false;
+				continue;
+			}
+			String hostname = null;
+			int port = -1;
+			long version = 0;
+			reader.beginObject();
+			while (reader.hasNextField()) {
+				String name = reader.nextName();
+				if (name.equals("hostname")) {
+					if (reader.isNextString()) {
+						hostname = reader.nextString();
+					} else {
+						reader.skipValue();
+						command.serverListValid = false;
+					}
+				} else if (name.equals("port")) {
+					if (reader.isNextObject() || reader.isNextArray()) {
+						reader.skipValue();
+						command.serverListValid = false;
+						continue;
+					}
+					try {
+						port = Integer.parseInt(reader.nextScalar());
+					} catch (NumberFormatException e) {
+						command.serverListValid = false;
+					}
+				} else if (name.equals("version")) {
+					version = reader.nextLong();
+				} else {
+					reader.skipValue();
+				}
+			}
+			if (hostname != null && port >= 0) {
+				command.serverList.add(new ServerBean(hostname, port));
+				command.serverVersions.add(version);
+			}
+		}
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public Boolean getRelay() {
+		return relay;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getSecret() {
+		return secret;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * @param command the name of a command
+	 * @return true if a server may keep the connection open after answering it: QUERY, EXCHANGE and SYNC
+	 */
+	public static boolean canKeepAlive(String command) {
+		return "QUERY".equals(command) || "EXCHANGE".equals(command) || "SYNC".equals(command);
+	}
+
+	public String getFraming() {
+		return framing;
+	}
+
+	public String getCompression() {
+		return compression;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	public boolean hasResource() {
+		return hasResource;
+	}
+
+	public Resource getResource() {
+		return resource;
+	}
+
+	public boolean hasResourceTemplate() {
+		return hasResourceTemplate;
+	}
+
+	public Resource getResourceTemplate() {
+		return resourceTemplate;
+	}
+
+	public boolean hasServerList() {
+		return serverList != null;
+	}
+
+	public List<ServerBean> getServerList() {
+		return serverList;
+	}
+
+	/**
+	 * @return the versions of the servers of getServerList(), 0 when the sender didn't give one
+	 */
+	public List<Long> getServerVersions() {
+		return serverVersions;
+	}
+
+	public List<String> getBuckets() {
+		return buckets;
+	}
+
+	public List<Integer> getNeed() {
+		return need;
+	}
+
+	public String getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return the catalog summary of the sender in base64, null if it didn't send one
+	 */
+	public String getSummary() {
+		return summary;
+	}
+
+	public long getSummaryVersion() {
+		return summaryVersion;
+	}
+
+	/**
+	 * @return the version of our catalog summary the sender already has, null if it doesn't know summaries
+	 */
+	public Long getKnownSummary() {
+		return knownSummary;
+	}
+
+	/**
+	 * @return the level of the catalog tree whose hashes a SYNC asks for, null if it asks for entries
+	 */
+	public Integer getLevel() {
+		return level;
+	}
+
+	public List<Integer> getNodes() {
+		return nodes;
+	}
+
+	public List<Integer> getLeaves() {
+		return leaves;
+	}
+
+	public List<String> getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return the resources and removals sent with a SYNC
+	 */
+	public List<CatalogTree.Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the last change a read replica applied, null if it has none
+	 */
+	public Long getFromSequence() {
+		return fromSequence;
+	}
+
+	/**
+	 * @return the run of the primary the sequence numbers belong to
+	 */
+	public Long getEpoch() {
+		return epoch;
+	}
+
+	public Long getSequence() {
+		return sequence;
+	}
+
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	public boolean isSnapshotEnd() {
+		return snapshotEnd;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * @return true for a PUBLISH or REMOVE forwarded to the owner of the channel, it is not forwarded again
+	 */
+	public boolean isForwarded() {
+		return forwarded;
+	}
+
+	/**
+	 * @return true for a REPLICATE asking for the public stream, answered with the owners masked; it still
+	 * needs the secret and is refused unless the server was started with -publicstream
+	 */
+	public boolean isPublic() {
+		return publicStream;
+	}
+
+	/**
+	 * @return milliseconds a SUBSCRIBE lets notifications gather into one batch, null to send each at once
+	 */
+	public Integer getBatchLatency() {
+		return batchLatency;
+	}
+
+	/**
+	 * @return notifications in a batch at most, null for ServerInfo.maxBatchSize
+	 */
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+
+	public boolean isServerListValid() {
+		return serverListValid;
+	}
+}
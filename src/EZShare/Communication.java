@@ -6,22 +6,33 @@
 
 package EZShare;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket; 
+import java.net.SocketTimeoutException;
 import java.util.List; 
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger; 
 
 public class Communication implements Runnable {
 	private Socket clientSocket;
 	private DataInputStream inputStream;
 	private DataOutputStream outputStream;
+	private MessageStream messageStream;
 	private ServerCommandProcessor processor;
 	private boolean secure;
 	private boolean persistent;
+	private CountingOutputStream counter;
+	private long bytesCounted = 0;
+	private boolean keptAlive = false;     // holds one of the kept-alive connections allowed to the peer
+	private static final AtomicLong flushes = new AtomicLong();
+	private static final AtomicLong bytesSent = new AtomicLong();
 	
 	Logger logger = Logger.getLogger(Communication.class);
 
@@ -37,7 +48,10 @@ public class Communication implements Runnable {
 		
 		try {
 			this.inputStream = new DataInputStream(clientSocket.getInputStream());
-			this.outputStream = new DataOutputStream(clientSocket.getOutputStream());
+			// replies are coalesced and flushed once per response (or when the buffer fills up)
+			this.counter = new CountingOutputStream(clientSocket.getOutputStream());
+			this.outputStream = new DataOutputStream(new BufferedOutputStream(counter, ServerInfo.outputBufferSize));
+			this.messageStream = new MessageStream(inputStream, outputStream);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -49,61 +63,157 @@ public class Communication implements Runnable {
 	 */
 	public void run() {
 		try {
-			String commandStr = inputStream.readUTF();  //read client input command (publish, etc.)
-			
-			logger.info("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + commandStr);
-			// inputStream: all data sent by client 
-			processor.processCommand(commandStr, secure, inputStream, new ServerCommandProcessor.ProcessorListener() {
-				@Override
-				public boolean onProcessFinished(List<Message> messages, boolean closeConnection) {
-					try {
-						for (Message message : messages) {  
-							if (message.getType() == MessageType.STRING) {
-								outputStream.writeUTF(message.getMessage());
-								outputStream.flush();
-								logger.debug("SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getMessage());
-							} else if (message.getType() == MessageType.BYTES) {
-								outputStream.write(message.getBytes());
-								outputStream.flush();
-								logger.debug("SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getBytes().length + "B");
-							} else if(message.getType() == MessageType.FILE) {
-								BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream(message.getFile()));
-								int bufferSize = 1024;
-								byte[] bufferArray = new byte[bufferSize];
-								int read = 0;
-								while ((read = bufferedInputStream.read(bufferArray)) != -1){
-									outputStream.write(bufferArray, 0, read);
-								}
-								outputStream.flush();
-								bufferedInputStream.close();
-								logger.debug("FILE SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getFile().getName());
+			// a server relaying to us may keep the connection alive and send further commands on it, 
+			// an idle one gives its worker thread back before the other server would reuse it
+			while (!clientSocket.isClosed()) {
+				if (keptAlive)
+					clientSocket.setSoTimeout(ServerInfo.keepAliveTimeout * 1000);
+				String commandStr = messageStream.readMessage();  //read client input command (publish, etc.)
+				clientSocket.setSoTimeout(ServerInfo.timeout * 1000);
+				processCommand(commandStr);
+			}
+		} catch (EOFException e) {
+			logger.debug("Connection closed by: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
+		} catch (SocketTimeoutException e) {
+			logger.debug("Idle connection closed: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
+		} catch (IOException e) {
+			if (!clientSocket.isClosed())
+				e.printStackTrace();
+		} finally {
+			if (keptAlive)
+				ServerCore.getInstance().getServerConnection().releaseKeepAlive(clientSocket.getInetAddress(), secure);
+			messageStream.end();
+			if (!clientSocket.isClosed()) {
+				try {
+					clientSocket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private void processCommand(String commandStr) {
+		logger.info("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + commandStr);
+		// inputStream: all data sent by client 
+		processor.processCommand(commandStr, secure, messageStream, new ServerCommandProcessor.ProcessorListener() {
+			// subscriptions are notified from publishing and relay threads at the same time
+			@Override
+			public synchronized boolean onProcessFinished(List<Message> messages, boolean closeConnection) {
+				try {
+					for (Message message : messages) {  
+						if (message.getType() == MessageType.STRING) {
+							messageStream.writeMessage(message.getMessage());
+							logger.debug("SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getMessage());
+						} else if (message.getType() == MessageType.RESOURCE) {
+							messageStream.writeResource(message.getResource());
+							if (logger.isDebugEnabled())
+								logger.debug("SENT: " + (secure ? "(secure) " : "(insecure) ") + message.toJsonString());
+						} else if (message.getType() == MessageType.BYTES) {
+							outputStream.write(message.getBytes());
+							logger.debug("SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getBytes().length + "B");
+						} else if(message.getType() == MessageType.FILE) {
+							FileInputStream fileInputStream = new FileInputStream(message.getFile());
+							byte[] bufferArray = new byte[ServerInfo.fileBufferSize];
+							int read = 0;
+							while ((read = fileInputStream.read(bufferArray)) != -1){
+								outputStream.write(bufferArray, 0, read);
 							}
+							fileInputStream.close();
+							logger.debug("FILE SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getFile().getName());
 						}
-						return true;
-					} catch(IOException e) {
-						logger.debug("Lost connection to: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
-						try{
+					}
+					flush();      // end of a response or of a subscription notification
+					return true;
+				} catch(IOException e) {
+					logger.debug("Lost connection to: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
+					try{
+						clientSocket.close();
+					} catch(IOException e1) {
+						e1.printStackTrace();
+						return false;
+					}
+					return false;
+				} finally {
+					if(closeConnection && !clientSocket.isClosed()) {
+						try {
 							clientSocket.close();
-						} catch(IOException e1) {
-							e1.printStackTrace();
-							return false;
+						} catch (IOException e) { 
+							e.printStackTrace();
 						}
+						logger.debug("Close connection: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
 						return false;
-					} finally {
-						if(closeConnection && !clientSocket.isClosed()) {
-							try {
-								clientSocket.close();
-							} catch (IOException e) { 
-								e.printStackTrace();
-							}
-							logger.debug("Close connection: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
-							return false;
-						}
 					}
-				}			
-			}); 			
-		} catch (IOException e) {
-			e.printStackTrace();
+				}
+			}
+			
+			@Override
+			public synchronized boolean grantKeepAlive() {
+				if (!ServerCore.getInstance().isKnownPeer(clientSocket.getInetAddress(), secure))
+					return false;
+				if (!keptAlive)
+					keptAlive = ServerCore.getInstance().getServerConnection().acquireKeepAlive(clientSocket.getInetAddress(), secure);
+				if (!keptAlive)
+					return false;
+				messageStream.setMaxFrameSize(ServerInfo.maxPeerFrameSize);     // the next commands come from a known server
+				try {
+					messageStream.writeMessage(MessageStream.KEEP_ALIVE_ACK);     // flushed with the reply
+					return true;
+				} catch (IOException e) {
+					logger.debug("Lost connection to: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
+					return false;
+				}
+			}
+			
+			@Override
+			public synchronized void onFramingRequested(String framing, String compression, String encoding) {
+				try {
+					messageStream.acceptNegotiation(framing, compression, encoding);
+				} catch (IOException e) {
+					logger.debug("Lost connection to: " + (secure ? "(secure) " : "(insecure) ") + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
+				}
+			}
+		});
+	}
+	
+	private void flush() throws IOException {
+		outputStream.flush();
+		long written = counter.getCount();
+		flushes.incrementAndGet();
+		bytesSent.addAndGet(written - bytesCounted);
+		bytesCounted = written;
+	}
+	
+	public static long getFlushes() {
+		return flushes.get();
+	}
+	
+	public static long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	// counts the bytes written to the socket in a long, DataOutputStream.size() stops at Integer.MAX_VALUE
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
 		}
 	}
 	
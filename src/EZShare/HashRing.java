@@ -0,0 +1,66 @@
+/**
+ * The class is a consistent hash ring over the server list, used in channel ownership mode. Every
+ * server is placed on the ring ServerInfo.virtualNodes times, and a channel is owned by the first
+ * servers found clockwise from its hash. A server joining or leaving only takes over or hands back
+ * the ranges next to its own virtual nodes, the other channels keep their owners.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class HashRing {
+	private final TreeMap<Long, ServerBean> ring = new TreeMap<>();
+	private final int servers;
+
+	/**
+	 * @param serverBeans the servers of the ring, this one included
+	 * @param virtualNodes the places of each server on the ring
+	 */
+	public HashRing(List<ServerBean> serverBeans, int virtualNodes) {
+		for (ServerBean serverBean : serverBeans) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(Membership.key(serverBean) + "#" + i), serverBean);
+			}
+		}
+		this.servers = serverBeans.size();
+	}
+
+	/**
+	 * The method returns the owners of a channel.
+	 * @param channel
+	 * @param count the replication factor
+	 * @return the first count distinct servers clockwise from the channel, fewer if the ring is smaller
+	 */
+	public List<ServerBean> owners(String channel, int count) {
+		List<ServerBean> owners = new ArrayList<>(count);
+		if (ring.isEmpty())
+			return owners;
+		long start = hash(channel);
+		Set<String> seen = new HashSet<>();     // by Membership.key
+		for (Map.Entry<Long, ServerBean> entry : ring.tailMap(start).entrySet()) {
+			if (owners.size() == Math.min(count, servers))
+				return owners;
+			if (seen.add(Membership.key(entry.getValue())))
+				owners.add(entry.getValue());
+		}
+		for (Map.Entry<Long, ServerBean> entry : ring.headMap(start).entrySet()) {
+			if (owners.size() == Math.min(count, servers))
+				return owners;
+			if (seen.add(Membership.key(entry.getValue())))
+				owners.add(entry.getValue());
+		}
+		return owners;
+	}
+
+	private static long hash(String key) {
+		return Membership.mix(Membership.fnv(key));
+	}
+}
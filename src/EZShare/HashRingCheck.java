@@ -0,0 +1,102 @@
+/**
+ * The class checks how many channels change owners when a server leaves or joins a HashRing of n
+ * servers, with ServerInfo.virtualNodes and ServerInfo.replicationFactor. Only the channels the server
+ * owned, or comes to own, may change, and they may only swap it for one other server; the share of
+ * channels that changed is printed next to the R/N expected of consistent hashing, with the most and
+ * fewest channels a server owns. The hashes are fixed, so the figures are the same on every run.
+ * Usage: java EZShare.HashRingCheck [servers, 100 by default] [channels, 100000 by default]
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class HashRingCheck {
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int channels = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		List<ServerBean> servers = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			servers.add(new ServerBean("10.0." + (i / 256) + "." + (i % 256), 3000 + i));
+		}
+		System.out.println(size + " servers, " + channels + " channels, " + ServerInfo.virtualNodes
+				+ " virtual nodes, " + ServerInfo.replicationFactor + " owners per channel");
+		List<Set<String>> owners = owners(servers, channels);
+		printLoad(owners);
+
+		List<ServerBean> left = new ArrayList<>(servers);
+		ServerBean leaving = left.remove(size / 2);
+		boolean passed = compare("leave", owners, owners(left, channels), leaving, size);
+
+		List<ServerBean> joined = new ArrayList<>(servers);
+		ServerBean joining = new ServerBean("10.1.0.1", 4000);
+		joined.add(joining);
+		passed &= compare("join", owners(joined, channels), owners, joining, size + 1);
+
+		System.out.println(passed ? "passed" : "FAILED");
+		if (!passed)
+			System.exit(1);
+	}
+
+	private static List<Set<String>> owners(List<ServerBean> servers, int channels) {
+		HashRing ring = new HashRing(servers, ServerInfo.virtualNodes);
+		List<Set<String>> owners = new ArrayList<>(channels);
+		for (int i = 0; i < channels; i++) {
+			Set<String> keys = new HashSet<>();
+			for (ServerBean owner : ring.owners("channel" + i, ServerInfo.replicationFactor)) {
+				keys.add(Membership.key(owner));
+			}
+			owners.add(keys);
+		}
+		return owners;
+	}
+
+	// with is the ring with the server, without the ring without it
+	private static boolean compare(String name, List<Set<String>> with, List<Set<String>> without, ServerBean server, int size) {
+		boolean passed = true;
+		String key = Membership.key(server);
+		int changed = 0;
+		for (int i = 0; i < with.size(); i++) {
+			if (with.get(i).size() != Math.min(ServerInfo.replicationFactor, size)) {
+				System.out.println(name + ": channel" + i + " has " + with.get(i).size() + " owners");
+				passed = false;
+			}
+			if (with.get(i).equals(without.get(i)))
+				continue;
+			changed++;
+			Set<String> moved = new HashSet<>(with.get(i));
+			moved.removeAll(without.get(i));
+			if (!moved.equals(Collections.singleton(key))) {
+				System.out.println(name + ": channel" + i + " changed owners other than " + key);
+				passed = false;
+			}
+		}
+		System.out.printf("%s of %s: %.2f%% of the channels changed owners, R/N = %.2f%%%n", name, key,
+				100.0 * changed / with.size(), 100.0 * ServerInfo.replicationFactor / size);
+		return passed;
+	}
+
+	private static void printLoad(List<Set<String>> owners) {
+		Map<String, Integer> load = new HashMap<>();
+		for (Set<String> keys : owners) {
+			for (String key : keys) {
+				load.merge(key, 1, Integer::sum);
+			}
+		}
+		int most = 0;
+		int fewest = Integer.MAX_VALUE;
+		for (int channels : load.values()) {
+			most = Math.max(most, channels);
+			fewest = Math.min(fewest, channels);
+		}
+		System.out.println("channels owned by a server: " + fewest + " to " + most);
+	}
+}
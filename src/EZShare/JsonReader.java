@@ -0,0 +1,241 @@
+/**
+ * The class is a small pull parser for the JSON messages of the EZShare protocol. It walks the
+ * string once and lets the caller pick the fields it knows and skip the others, so no JSON tree
+ * is built. Errors are reported as JSONException, like the json4j parser does.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import org.apache.wink.json4j.JSONException;
+
+public class JsonReader {
+	private final String json;
+	private int position;
+
+	public JsonReader(String json) {
+		this.json = json;
+		this.position = 0;
+	}
+
+	public void beginObject() throws JSONException {
+		expect('{');
+	}
+
+	public void beginArray() throws JSONException {
+		expect('[');
+	}
+
+	/**
+	 * The method moves to the next field of the current object.
+	 * @return false at the end of the object
+	 * @throws JSONException
+	 */
+	public boolean hasNextField() throws JSONException {
+		return hasNext('}');
+	}
+
+	/**
+	 * The method moves to the next element of the current array.
+	 * @return false at the end of the array
+	 * @throws JSONException
+	 */
+	public boolean hasNextElement() throws JSONException {
+		return hasNext(']');
+	}
+
+	private boolean hasNext(char end) throws JSONException {
+		skipWhitespace();
+		char c = peekChar();
+		if (c == end) {
+			position++;
+			return false;
+		}
+		if (c == ',') {
+			position++;
+			skipWhitespace();
+		}
+		return true;
+	}
+
+	public String nextName() throws JSONException {
+		String name = nextString();
+		expect(':');
+		return name;
+	}
+
+	public boolean isNextString() throws JSONException {
+		skipWhitespace();
+		return peekChar() == '"';
+	}
+
+	public boolean isNextObject() throws JSONException {
+		skipWhitespace();
+		return peekChar() == '{';
+	}
+
+	public boolean isNextArray() throws JSONException {
+		skipWhitespace();
+		return peekChar() == '[';
+	}
+
+	public String nextString() throws JSONException {
+		expect('"');
+		int start = position;
+		// fast path, no escapes
+		while (position < json.length()) {
+			char c = json.charAt(position);
+			if (c == '"') {
+				return json.substring(start, position++);
+			}
+			if (c == '\\') break;
+			position++;
+		}
+		StringBuilder builder = new StringBuilder(json.substring(start, position));
+		while (position < json.length()) {
+			char c = json.charAt(position++);
+			if (c == '"') return builder.toString();
+			if (c != '\\') {
+				builder.append(c);
+				continue;
+			}
+			if (position >= json.length()) break;
+			char escaped = json.charAt(position++);
+			switch (escaped) {
+			case 'b': builder.append('\b'); break;
+			case 'f': builder.append('\f'); break;
+			case 'n': builder.append('\n'); break;
+			case 'r': builder.append('\r'); break;
+			case 't': builder.append('\t'); break;
+			case 'u':
+				if (position + 4 > json.length()) throw error("bad unicode escape");
+				try {
+					builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("bad unicode escape");
+				}
+				position += 4;
+				break;
+			default: builder.append(escaped);
+			}
+		}
+		throw error("unterminated string");
+	}
+
+	public boolean nextBoolean() throws JSONException {
+		skipWhitespace();
+		if (json.startsWith("true", position)) {
+			position += 4;
+			return true;
+		}
+		if (json.startsWith("false", position)) {
+			position += 5;
+			return false;
+		}
+		throw error("expected a boolean");
+	}
+
+	public long nextLong() throws JSONException {
+		String number = nextNumber();
+		try {
+			return Long.parseLong(number);
+		} catch (NumberFormatException e) {
+			try {
+				double value = Double.parseDouble(number);
+				if (value != Math.rint(value)) throw error("expected an integer");
+				return (long) value;
+			} catch (NumberFormatException e1) {
+				throw error("expected a number");
+			}
+		}
+	}
+
+	public int nextInt() throws JSONException {
+		long value = nextLong();
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw error("integer out of range");
+		return (int) value;
+	}
+
+	/**
+	 * The method reads a string, a number or a boolean as a string.
+	 * @return the value as text, null for a json null
+	 * @throws JSONException
+	 */
+	public String nextScalar() throws JSONException {
+		skipWhitespace();
+		char c = peekChar();
+		if (c == '"') return nextString();
+		if (c == 't' || c == 'f') return String.valueOf(nextBoolean());
+		if (json.startsWith("null", position)) {
+			position += 4;
+			return null;
+		}
+		return nextNumber();
+	}
+
+	private String nextNumber() throws JSONException {
+		skipWhitespace();
+		int start = position;
+		while (position < json.length()) {
+			char c = json.charAt(position);
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+				position++;
+			} else {
+				break;
+			}
+		}
+		if (start == position) throw error("expected a number");
+		return json.substring(start, position);
+	}
+
+	/**
+	 * The method skips the next value, whatever its type.
+	 * @throws JSONException
+	 */
+	public void skipValue() throws JSONException {
+		skipWhitespace();
+		char c = peekChar();
+		if (c == '"') {
+			nextString();
+		} else if (c == '{') {
+			beginObject();
+			while (hasNextField()) {
+				nextName();
+				skipValue();
+			}
+		} else if (c == '[') {
+			beginArray();
+			while (hasNextElement()) {
+				skipValue();
+			}
+		} else if (json.startsWith("null", position)) {
+			position += 4;
+		} else if (c == 't' || c == 'f') {
+			nextBoolean();
+		} else {
+			nextNumber();
+		}
+	}
+
+	private void expect(char expected) throws JSONException {
+		skipWhitespace();
+		if (peekChar() != expected) throw error("expected '" + expected + "'");
+		position++;
+	}
+
+	private char peekChar() throws JSONException {
+		if (position >= json.length()) throw error("unexpected end of message");
+		return json.charAt(position);
+	}
+
+	private void skipWhitespace() {
+		while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+			position++;
+		}
+	}
+
+	private JSONException error(String message) {
+		return new JSONException(message + " at " + position);
+	}
+}
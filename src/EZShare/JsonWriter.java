@@ -0,0 +1,95 @@
+/**
+ * The class writes the JSON messages of the EZShare protocol straight into a StringBuilder,
+ * without building json4j objects. Resources are written with the same fields and order as
+ * Resource.toJson.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.List;
+
+public class JsonWriter {
+	public static final String SUCCESS = "{\"response\":\"success\"}";
+
+	/**
+	 * The method builds an error response.
+	 * @param errorMessage
+	 * @return json string
+	 */
+	public static String error(String errorMessage) {
+		StringBuilder builder = new StringBuilder(48 + errorMessage.length());
+		builder.append("{\"response\":\"error\",\"errorMessage\":");
+		quote(errorMessage, builder);
+		return builder.append('}').toString();
+	}
+
+	public static String toJson(Resource resource) {
+		StringBuilder builder = new StringBuilder(256);
+		writeResource(resource, builder);
+		return builder.toString();
+	}
+
+	/**
+	 * The method writes a resource as a json object.
+	 * @param resource
+	 * @param builder
+	 */
+	public static void writeResource(Resource resource, StringBuilder builder) {
+		builder.append("{\"name\":");
+		quote(resource.getName(), builder);
+		builder.append(",\"tags\":[");
+		List<String> tags = resource.getTags();
+		if (tags != null) {
+			for (int i = 0; i < tags.size(); i++) {
+				if (i > 0) builder.append(',');
+				quote(tags.get(i), builder);
+			}
+		}
+		builder.append("],\"description\":");
+		quote(resource.getDescription(), builder);
+		builder.append(",\"uri\":");
+		quote(resource.getUri() == null ? null : resource.getUri().toString(), builder);
+		builder.append(",\"channel\":");
+		quote(resource.getChannel(), builder);
+		builder.append(",\"owner\":");
+		quote(resource.getOwner(), builder);
+		builder.append(",\"ezserver\":");
+		quote(resource.getServerBean() == null ? null : resource.getServerBean().toString(), builder);
+		if (resource.getSize() > 0) {
+			builder.append(",\"resourceSize\":").append(resource.getSize());
+		}
+		builder.append('}');
+	}
+
+	/**
+	 * The method writes a json string, null is written as "".
+	 * @param string
+	 * @param builder
+	 */
+	public static void quote(String string, StringBuilder builder) {
+		builder.append('"');
+		if (string != null) {
+			for (int i = 0; i < string.length(); i++) {
+				char c = string.charAt(i);
+				switch (c) {
+				case '"': builder.append("\\\""); break;
+				case '\\': builder.append("\\\\"); break;
+				case '\n': builder.append("\\n"); break;
+				case '\r': builder.append("\\r"); break;
+				case '\t': builder.append("\\t"); break;
+				case '\b': builder.append("\\b"); break;
+				case '\f': builder.append("\\f"); break;
+				default:
+					if (c < 0x20) {
+						builder.append(String.format("\\u%04x", (int) c));
+					} else {
+						builder.append(c);
+					}
+				}
+			}
+		}
+		builder.append('"');
+	}
+}
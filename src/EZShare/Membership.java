@@ -0,0 +1,244 @@
+/**
+ * The class is the server list of one port (insecure or secure), kept in a hash map by hostname:port
+ * (the hostname lower-cased) with a version per server. Other names of this server, e.g. localhost or
+ * one of its addresses, are never added. The version is set by the server itself when it starts, so a restarted
+ * server replaces its old entry everywhere, and only a higher version replaces an entry.
+ * Entries are spread over ServerInfo.membershipBuckets buckets, each with a digest (the xor of the
+ * hashes of its entries) kept up to date on every change. Two servers exchanging digests find the
+ * buckets they disagree on and send each other only the entries of those buckets.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+public class Membership {
+	private final Map<String, Member> members = new HashMap<>();
+	private final long[] digests = new long[ServerInfo.membershipBuckets];
+	private final ServerBean self;
+	private final Random random = new Random();
+	private long changes = 0;
+
+	/**
+	 * @param self this server, always a member
+	 * @param version the version of this server, e.g. its start time
+	 */
+	public Membership(ServerBean self, long version) {
+		this.self = self;
+		put(new Member(self, version));
+	}
+
+	/**
+	 * The method adds a server or updates its version.
+	 * @param serverBean
+	 * @param version 0 when the sender doesn't know versions
+	 * @return true if the server is new
+	 */
+	public boolean merge(ServerBean serverBean, long version) {
+		if (isSelf(serverBean))     // may resolve the hostname, not under the lock
+			return false;
+		return add(serverBean, version);
+	}
+
+	/**
+	 * The method tells whether a server is this one, under this name or another: the same port and the
+	 * same hostname, or an address of this host.
+	 * @param serverBean
+	 * @return true if it is this server
+	 */
+	public boolean isSelf(ServerBean serverBean) {
+		if (serverBean.getPort() != self.getPort())
+			return false;
+		if (key(serverBean).equals(key(self)))
+			return true;
+		InetAddress address = serverBean.getAddress();
+		if (address == null)
+			return false;
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress() || address.equals(self.getAddress()))
+			return true;
+		try {
+			return NetworkInterface.getByInetAddress(address) != null;
+		} catch (SocketException e) {
+			return false;
+		}
+	}
+
+	private synchronized boolean add(ServerBean serverBean, long version) {
+		String key = key(serverBean);
+		Member member = members.get(key);
+		if (member == null) {
+			put(new Member(serverBean, version));
+			return true;
+		}
+		if (version > member.version) {
+			remove(member);
+			put(new Member(member.serverBean, version));
+		}
+		return false;
+	}
+
+	public synchronized void remove(ServerBean serverBean) {
+		Member member = members.get(key(serverBean));
+		if (member != null && member.serverBean != self)
+			remove(member);
+	}
+
+	public synchronized boolean contains(ServerBean serverBean) {
+		return members.containsKey(key(serverBean));
+	}
+
+	public synchronized int size() {
+		return members.size();
+	}
+
+	/**
+	 * @return a counter of the servers added, updated or removed, to tell when the list changed
+	 */
+	public synchronized long getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return a copy of the servers, this one included
+	 */
+	public synchronized List<ServerBean> list() {
+		List<ServerBean> serverBeans = new ArrayList<>(members.size());
+		for (Member member : members.values()) {
+			serverBeans.add(member.serverBean);
+		}
+		return serverBeans;
+	}
+
+	/**
+	 * @return a random server other than this one, null if there is none
+	 */
+	public synchronized ServerBean randomPeer() {
+		if (members.size() <= 1)
+			return null;
+		List<Member> others = new ArrayList<>(members.values());
+		others.removeIf(member -> member.serverBean == self);
+		return others.get(random.nextInt(others.size())).serverBean;
+	}
+
+	/**
+	 * @return the digests of the buckets in hex
+	 */
+	public synchronized List<String> getDigests() {
+		List<String> hex = new ArrayList<>(digests.length);
+		for (long digest : digests) {
+			hex.add(Long.toHexString(digest));
+		}
+		return hex;
+	}
+
+	/**
+	 * The method compares the digests of another server with ours.
+	 * @param otherDigests the digests in hex
+	 * @return the buckets that differ, every bucket if the other server uses another number of buckets,
+	 * and the buckets whose digest is not valid hex
+	 */
+	public synchronized List<Integer> differingBuckets(List<String> otherDigests) {
+		List<Integer> buckets = new ArrayList<>();
+		for (int i = 0; i < digests.length; i++) {
+			if (otherDigests.size() != digests.length || !sameDigest(digests[i], otherDigests.get(i)))
+				buckets.add(i);
+		}
+		return buckets;
+	}
+
+	private static boolean sameDigest(long digest, String hex) {
+		try {
+			return hex != null && digest == Long.parseUnsignedLong(hex, 16);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The method writes the entries of some buckets as a json array of hostname, port and version.
+	 * @param buckets null for every bucket
+	 * @param builder
+	 */
+	public synchronized void writeEntries(Collection<Integer> buckets, StringBuilder builder) {
+		builder.append('[');
+		boolean first = true;
+		for (Member member : members.values()) {
+			if (buckets != null && !buckets.contains(member.bucket))
+				continue;
+			if (!first) builder.append(',');
+			first = false;
+			builder.append("{\"hostname\":");
+			JsonWriter.quote(member.serverBean.getHostname(), builder);
+			builder.append(",\"port\":").append(member.serverBean.getPort());
+			builder.append(",\"version\":").append(member.version).append('}');
+		}
+		builder.append(']');
+	}
+
+	private void put(Member member) {
+		members.put(key(member.serverBean), member);
+		digests[member.bucket] ^= member.hash;
+		changes++;
+	}
+
+	private void remove(Member member) {
+		members.remove(key(member.serverBean));
+		digests[member.bucket] ^= member.hash;
+		changes++;
+	}
+
+	public String toString() {
+		return list().toString();
+	}
+
+	/**
+	 * @param serverBean
+	 * @return hostname:port with the hostname lower-cased, as hostnames are not case sensitive
+	 */
+	static String key(ServerBean serverBean) {
+		return serverBean.getHostname().toLowerCase(Locale.ROOT) + ":" + serverBean.getPort();
+	}
+
+	// fnv-1a
+	static long fnv(String string) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < string.length(); i++) {
+			hash ^= string.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	// the splitmix64 finalizer
+	static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
+	private static class Member {
+		private final ServerBean serverBean;
+		private final long version;
+		private final int bucket;
+		private final long hash;
+
+		Member(ServerBean serverBean, long version) {
+			this.serverBean = serverBean;
+			this.version = version;
+			long keyHash = fnv(key(serverBean));
+			this.bucket = (int) Long.remainderUnsigned(keyHash, ServerInfo.membershipBuckets);
+			this.hash = mix(keyHash ^ mix(version));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * The class simulates the server list exchange of a federation in memory, to measure how many rounds
+ * the server lists take to converge and how many bytes a round sends, with the bucket digests of
+ * ServerCore.exchangeServers and with the entire list as older servers send it. Every server starts
+ * with itself and one seed server; in each round every server exchanges with a random server of its
+ * list. The messages are the ones the servers send, parsed by Command, without the catalog summary.
+ * Usage: java EZShare.MembershipSimulation [servers, 1000 by default] [random seed]
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.wink.json4j.JSONException;
+
+public class MembershipSimulation {
+	private static final int MAX_ROUNDS = 100;
+
+	private final List<ServerBean> servers = new ArrayList<>();
+	private final List<Membership> memberships = new ArrayList<>();
+	private final Random random;
+	private long bytes = 0;
+
+	MembershipSimulation(int size, long seed) {
+		random = new Random(seed);
+		for (int i = 0; i < size; i++) {
+			ServerBean server = new ServerBean("10.0." + (i / 256) + "." + (i % 256), 3000 + i);
+			servers.add(server);
+			memberships.add(new Membership(server, 1000000 + i));
+		}
+		for (int i = 1; i < size; i++) {
+			memberships.get(i).merge(servers.get(0), 1000000);
+		}
+	}
+
+	public static void main(String[] args) throws JSONException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		System.out.println(size + " servers, " + ServerInfo.membershipBuckets + " buckets");
+		new MembershipSimulation(size, seed).run(true);
+		new MembershipSimulation(size, seed).run(false);
+	}
+
+	// rounds until every server knows every other one, then one more round once they agree
+	private void run(boolean digests) throws JSONException {
+		String name = digests ? "digests" : "full list";
+		int round = 0;
+		while (!converged() && round < MAX_ROUNDS) {
+			round++;
+			long sent = round(digests);
+			System.out.println(name + ": round " + round + ", " + sent + " bytes, " + known() + " entries known");
+		}
+		if (!converged()) {
+			System.out.println(name + ": not converged after " + MAX_ROUNDS + " rounds");
+			return;
+		}
+		long sent = round(digests);
+		System.out.println(name + ": converged in " + round + " rounds, then " + sent + " bytes per round, "
+				+ sent / servers.size() + " bytes per server");
+	}
+
+	private long round(boolean digests) throws JSONException {
+		bytes = 0;
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < servers.size(); i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, random);
+		for (int i : order) {
+			Membership membership = memberships.get(i);
+			ServerBean peer = membership.randomPeer();
+			if (peer == null)
+				continue;
+			Membership other = memberships.get(servers.indexOf(peer));
+			if (digests)
+				exchangeDigests(membership, other);
+			else
+				exchangeList(membership, other);
+		}
+		return bytes;
+	}
+
+	// as ServerCore.exchangeServers and ServerCommandProcessor.exchange do with a server that knows digests
+	private void exchangeDigests(Membership membership, Membership other) throws JSONException {
+		StringBuilder builder = new StringBuilder("{\"command\":\"EXCHANGE\",\"buckets\":[");
+		List<String> digests = membership.getDigests();
+		for (int i = 0; i < digests.size(); i++) {
+			if (i > 0) builder.append(',');
+			JsonWriter.quote(digests.get(i), builder);
+		}
+		Command request = Command.parse(send(builder.append("],\"serverList\":[]}").toString()));
+		List<Integer> need = other.differingBuckets(request.getBuckets());
+		builder = new StringBuilder("{\"response\":\"success\",\"serverList\":");
+		other.writeEntries(need, builder);
+		builder.append(",\"need\":[");
+		for (int i = 0; i < need.size(); i++) {
+			if (i > 0) builder.append(',');
+			builder.append(need.get(i));
+		}
+		Command reply = Command.parseReply(send(builder.append("]}").toString()));
+		merge(membership, reply);
+		if (reply.getNeed().size() > 0) {
+			builder = new StringBuilder("{\"command\":\"EXCHANGE\",\"serverList\":");
+			membership.writeEntries(reply.getNeed(), builder);
+			merge(other, Command.parse(send(builder.append('}').toString())));
+			send(JsonWriter.SUCCESS);
+		}
+	}
+
+	// as a server sends its list to an older server
+	private void exchangeList(Membership membership, Membership other) throws JSONException {
+		StringBuilder builder = new StringBuilder("{\"command\":\"EXCHANGE\",\"serverList\":");
+		membership.writeEntries(null, builder);
+		merge(other, Command.parse(send(builder.append('}').toString())));
+		send(JsonWriter.SUCCESS);
+	}
+
+	private static void merge(Membership membership, Command command) {
+		List<ServerBean> serverList = command.getServerList();
+		for (int i = 0; i < serverList.size(); i++) {
+			membership.merge(serverList.get(i), command.getServerVersions().get(i));
+		}
+	}
+
+	// the message and its 2-byte length, the messages are ASCII
+	private String send(String message) {
+		bytes += message.length() + 2;
+		return message;
+	}
+
+	private boolean converged() {
+		for (Membership membership : memberships) {
+			if (membership.size() != servers.size())
+				return false;
+		}
+		return true;
+	}
+
+	private long known() {
+		long known = 0;
+		for (Membership membership : memberships) {
+			known += membership.size();
+		}
+		return known;
+	}
+}
@@ -15,9 +15,16 @@ public class Message {
 	private String message;
 	private byte[] bytes;
 	private File file;
+	private Resource resource;
 	
 	public Message() {}
 	
+	// a resource, written as json or in binary depending on what the connection negotiated
+	public Message(Resource resource){
+		this.type = MessageType.RESOURCE;
+		this.resource = resource;
+	}
+	
 	public Message(String message){
 		this.type = MessageType.STRING;
 		this.message = message;
@@ -68,6 +75,24 @@ public class Message {
 		this.message = message;
 	}
 
+	public Resource getResource() {
+		return resource;
+	}
+
+	public void setResource(Resource resource) {
+		this.resource = resource;
+	}
+	
+	/**
+	 * The method returns the json string of the message, for resources too.
+	 * @return json string
+	 */
+	public String toJsonString() {
+		if (type == MessageType.RESOURCE)
+			return JsonWriter.toJson(resource);
+		return message;
+	}
+
 	public byte[] getBytes() {
 		return bytes;
 	}
@@ -0,0 +1,377 @@
+/**
+ * The class reads and writes the JSON messages of one connection. By default messages are framed
+ * with writeUTF/readUTF (modified UTF-8, at most 64 KB). When both ends agree, the connection switches
+ * to frames made of a 4-byte length followed by standard UTF-8, up to ServerInfo.maxFrameSize, or
+ * ServerInfo.maxPeerFrameSize for the replies of servers we asked and the commands of known servers. The switch is negotiated on the first command: the requester adds
+ * "framing":"length" to it, and a server that supports it answers with {"framing":"length"}
+ * (in the legacy framing) before its reply. Older servers just ignore the field.
+ * Length-prefixed frames can also be deflated when the requester adds "compression":"deflate".
+ * The deflater keeps its history across frames, primed with the resource field names, so the
+ * repeated keys, channels and servers of query results and notifications compress well.
+ * With "encoding":"binary", resources are sent as ResourceCodec frames (length with the top bit set)
+ * instead of JSON. The acknowledgement lists what the server accepted.
+ * Buffers are kept and reused for the whole connection.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+public class MessageStream {
+	public static final String LENGTH_PREFIXED = "length";
+	public static final String DEFLATE = "deflate";
+	public static final String BINARY = "binary";
+	public static final String KEEP_ALIVE_ACK = "{\"keepAlive\":true}";     // precedes a reply after which the connection stays open
+	public static final int MAX_UTF_LENGTH = 65535;     // bytes of a message in the legacy framing
+	private static final String ACK_PREFIX = "{\"framing\":\"" + LENGTH_PREFIXED + "\"";
+	private static final int RESOURCE_FRAME = 0x80000000;
+	// most frequent strings last, they are the cheapest to refer to
+	private static final byte[] DICTIONARY = ("file:///http://https://{\"response\":\"error\",\"errorMessage\":\""
+			+ "{\"resultSize\":{\"response\":\"success\"}\"resourceSize\":"
+			+ "{\"name\":\"\",\"tags\":[],\"description\":\"\",\"uri\":\"\",\"channel\":\"\",\"owner\":\"\",\"ezserver\":\"\"}"
+			+ "\",\"tags\":[\"\",\"description\":\"\",\"uri\":\"\",\"channel\":\"\",\"owner\":\"*\",\"ezserver\":\"").getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SUCCESS_BYTES = JsonWriter.SUCCESS.getBytes(StandardCharsets.UTF_8);
+	private static final AtomicLong uncompressedBytes = new AtomicLong();
+	private static final AtomicLong compressedBytes = new AtomicLong();
+	private static final AtomicLong compressionNanos = new AtomicLong();
+
+	private DataInputStream inputStream;
+	private DataOutputStream outputStream;
+	private boolean lengthPrefixed = false;
+	private boolean binaryResources = false;
+	private Deflater deflater;
+	private Inflater inflater;
+	private boolean ended = false;
+	private ResourceCodec codec;
+	private byte[] readBuffer = new byte[1024];
+	private int maxFrameSize = ServerInfo.maxFrameSize;
+	private byte[] inflateBuffer;
+	private byte[] deflateBuffer;
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+	private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	public MessageStream(DataInputStream inputStream, DataOutputStream outputStream) {
+		this.inputStream = inputStream;
+		this.outputStream = outputStream;
+	}
+
+	public DataInputStream getInputStream() {
+		return inputStream;
+	}
+
+	public DataOutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * @param maxFrameSize bytes of a length-prefixed frame at most, inflated or not
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public boolean isLengthPrefixed() {
+		return lengthPrefixed;
+	}
+
+	public void setLengthPrefixed(boolean lengthPrefixed) {
+		this.lengthPrefixed = lengthPrefixed;
+	}
+
+	public boolean isCompressed() {
+		return deflater != null;
+	}
+
+	public boolean isBinaryResources() {
+		return binaryResources;
+	}
+
+	private void startCompression() {
+		deflater = new Deflater(ServerInfo.compressionLevel);
+		deflater.setDictionary(DICTIONARY);
+		inflater = new Inflater();
+		inflateBuffer = new byte[1024];
+		deflateBuffer = new byte[1024];
+	}
+
+	/**
+	 * The method reads the next message. Binary resources are turned into their json string.
+	 * @return message a json string
+	 * @throws IOException if the connection is lost or the frame is invalid
+	 */
+	public String readMessage() throws IOException {
+		return read().toJsonString();
+	}
+
+	/**
+	 * The method reads the next message, a STRING one or, on binary connections, a RESOURCE one.
+	 * @return message
+	 * @throws IOException if the connection is lost or the frame is invalid
+	 */
+	public Message read() throws IOException {
+		if (!lengthPrefixed)
+			return new Message(inputStream.readUTF());
+		int header = inputStream.readInt();
+		int length = header & ~RESOURCE_FRAME;
+		if (length > maxFrameSize)
+			throw new IOException("invalid frame length: " + length);
+		// the buffer grows with the bytes that arrive, not with the length announced
+		int read = 0;
+		while (read < length) {
+			if (read == readBuffer.length)
+				readBuffer = Arrays.copyOf(readBuffer, Math.min(length, readBuffer.length * 2));
+			int count = inputStream.read(readBuffer, read, Math.min(length, readBuffer.length) - read);
+			if (count < 0)
+				throw new EOFException();
+			read += count;
+		}
+		byte[] payload = readBuffer;
+		if (inflater != null) {
+			length = inflate(length);
+			payload = inflateBuffer;
+		}
+		if ((header & RESOURCE_FRAME) != 0)
+			return new Message(ResourceCodec.decode(payload, 0, length));
+		return new Message(new String(payload, 0, length, StandardCharsets.UTF_8));
+	}
+
+	// every frame ends with a sync flush, so it inflates completely on its own
+	private synchronized int inflate(int length) throws IOException {
+		if (ended)
+			throw new IOException("connection closed");
+		inflater.setInput(readBuffer, 0, length);
+		int size = 0;
+		try {
+			while (true) {
+				if (size == inflateBuffer.length) {
+					if (size >= maxFrameSize)
+						throw new IOException("inflated frame too large");
+					inflateBuffer = Arrays.copyOf(inflateBuffer, size * 2);
+				}
+				int inflated = inflater.inflate(inflateBuffer, size, inflateBuffer.length - size);
+				size += inflated;
+				if (inflated == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY);
+					} else if (inflater.needsInput() || inflater.finished()) {
+						break;
+					}
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("invalid compressed frame", e);
+		}
+		return size;
+	}
+
+	/**
+	 * The method writes a message. It is not flushed.
+	 * @param message a json string
+	 * @throws IOException
+	 */
+	public void writeMessage(String message) throws IOException {
+		if (message == JsonWriter.SUCCESS) {
+			// the most frequent response is encoded once, it is ASCII so both framings use the same bytes
+			if (lengthPrefixed) {
+				writeFrame(SUCCESS_BYTES, SUCCESS_BYTES.length, 0);
+			} else {
+				outputStream.writeShort(SUCCESS_BYTES.length);
+				outputStream.write(SUCCESS_BYTES);
+			}
+			return;
+		}
+		if (!lengthPrefixed) {
+			outputStream.writeUTF(message);
+			return;
+		}
+		// a UTF-16 char never takes more than 3 bytes in UTF-8
+		int maxLength = message.length() * 3;
+		if (writeBuffer.capacity() < maxLength)
+			writeBuffer = ByteBuffer.allocate(Math.max(maxLength, writeBuffer.capacity() * 2));
+		writeBuffer.clear();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(message), writeBuffer, true);
+		encoder.flush(writeBuffer);
+		writeFrame(writeBuffer.array(), writeBuffer.position(), 0);
+	}
+
+	/**
+	 * The method writes a resource, in binary if the connection negotiated it and as json otherwise.
+	 * It is not flushed.
+	 * @param resource
+	 * @throws IOException
+	 */
+	public void writeResource(Resource resource) throws IOException {
+		if (!binaryResources) {
+			writeMessage(JsonWriter.toJson(resource));
+			return;
+		}
+		if (codec == null)
+			codec = new ResourceCodec();
+		byte[] bytes = codec.encode(resource);
+		writeFrame(bytes, codec.length(), RESOURCE_FRAME);
+	}
+
+	private void writeFrame(byte[] bytes, int length, int flags) throws IOException {
+		if (deflater == null) {
+			outputStream.writeInt(length | flags);
+			outputStream.write(bytes, 0, length);
+		} else {
+			int size = deflate(bytes, length);
+			outputStream.writeInt(size | flags);
+			outputStream.write(deflateBuffer, 0, size);
+		}
+	}
+
+	private synchronized int deflate(byte[] bytes, int length) throws IOException {
+		if (ended)
+			throw new IOException("connection closed");
+		long start = System.nanoTime();
+		deflater.setInput(bytes, 0, length);
+		int size = 0;
+		while (true) {
+			size += deflater.deflate(deflateBuffer, size, deflateBuffer.length - size, Deflater.SYNC_FLUSH);
+			if (size < deflateBuffer.length)
+				break;
+			deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+		}
+		compressionNanos.addAndGet(System.nanoTime() - start);
+		uncompressedBytes.addAndGet(length);
+		compressedBytes.addAndGet(size);
+		return size;
+	}
+
+	public void flush() throws IOException {
+		outputStream.flush();
+	}
+
+	/**
+	 * The method adds the request for length-prefixed framing to a command. Relaying servers also ask
+	 * for compression and binary resources.
+	 * @param requestObject the command
+	 * @param relay whether the connection is a server-to-server one
+	 * @return the command with the request as a string
+	 */
+	public static String withFraming(JSONObject requestObject, boolean relay) {
+		try {
+			requestObject.put("framing", LENGTH_PREFIXED);
+			if (relay && ServerInfo.compression)
+				requestObject.put("compression", DEFLATE);
+			if (relay)
+				requestObject.put("encoding", BINARY);
+			String request = requestObject.toString();
+			requestObject.remove("framing");
+			requestObject.remove("compression");
+			requestObject.remove("encoding");
+			return request;
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return requestObject.toString();
+		}
+	}
+
+	/**
+	 * The method is called by the requester after sending a command that asked for length-prefixed
+	 * framing. It reads the first line of the reply and switches framing if the server agreed.
+	 * @return the first message of the reply, or null if it was the framing acknowledgement
+	 * @throws IOException
+	 */
+	public String readNegotiation() throws IOException {
+		String first = inputStream.readUTF();
+		if (!first.startsWith(ACK_PREFIX))
+			return first;
+		try {
+			JSONObject ackObject = new JSONObject(first);
+			lengthPrefixed = true;
+			if (DEFLATE.equals(ackObject.optString("compression", "")))
+				startCompression();
+			binaryResources = BINARY.equals(ackObject.optString("encoding", ""));
+		} catch (JSONException e) {
+			throw new IOException("invalid framing acknowledgement");
+		}
+		return null;
+	}
+
+	/**
+	 * The method is called by the server when a command asks for a framing. The acknowledgement
+	 * goes out in the legacy framing, everything after it in the new one.
+	 * @param framing the framing the requester asked for
+	 * @param compression the compression the requester asked for, may be empty
+	 * @param encoding the resource encoding the requester asked for, may be empty
+	 * @throws IOException
+	 */
+	public void acceptNegotiation(String framing, String compression, String encoding) throws IOException {
+		if (lengthPrefixed || !LENGTH_PREFIXED.equals(framing))
+			return;
+		boolean compress = ServerInfo.compression && DEFLATE.equals(compression);
+		boolean binary = BINARY.equals(encoding);
+		outputStream.writeUTF(ACK_PREFIX
+				+ (compress ? ",\"compression\":\"" + DEFLATE + "\"" : "")
+				+ (binary ? ",\"encoding\":\"" + BINARY + "\"" : "") + "}");
+		lengthPrefixed = true;
+		binaryResources = binary;
+		if (compress)
+			startCompression();
+	}
+
+	/**
+	 * The method releases the native memory of the compression, if any. Called when the connection closes.
+	 */
+	public synchronized void end() {
+		ended = true;
+		if (deflater != null) {
+			deflater.end();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @param string
+	 * @return the bytes of a string in modified UTF-8, as writeUTF writes it without its length
+	 */
+	public static int utfLength(String string) {
+		int length = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				length++;
+			else if (c <= 0x07FF)
+				length += 2;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	public static long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	public static long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	public static long getCompressionNanos() {
+		return compressionNanos.get();
+	}
+}
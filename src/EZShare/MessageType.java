@@ -6,5 +6,5 @@
 package EZShare;  
 
 public enum MessageType {
-	STRING,BYTES,FILE
+	STRING,BYTES,FILE,RESOURCE
 }
\ No newline at end of file
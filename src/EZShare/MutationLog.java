@@ -0,0 +1,127 @@
+/**
+ * The class numbers the changes of the catalog (publish, share and remove) and keeps the last
+ * ServerInfo.mutationLogSize of them, so that read replicas can follow the catalog of this server.
+ * A replica that reconnects asks for the changes after the last one it applied; if they are no
+ * longer kept, or the server restarted since (its epoch changed), it is sent a snapshot instead.
+ * Subscriptions resumed with a sequence number are replayed the changes they missed from it too.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MutationLog {
+	private final Mutation[] ring;
+	private final long epoch;
+	private long sequence = 0;
+
+	/**
+	 * @param size the number of changes kept
+	 * @param epoch identifies this run of the server, e.g. its start time
+	 */
+	public MutationLog(int size, long epoch) {
+		this.ring = new Mutation[Math.max(1, size)];
+		this.epoch = epoch;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * The method records a change. It is called under the resources lock, so the sequence follows the
+	 * order of the changes.
+	 * @param resource the resource published, shared or removed
+	 * @param deleted true for a removal
+	 * @return the sequence number of the change
+	 */
+	public synchronized long append(Resource resource, boolean deleted) {
+		sequence++;
+		ring[(int) (sequence % ring.length)] = new Mutation(sequence, resource, deleted, System.currentTimeMillis());
+		notifyAll();
+		return sequence;
+	}
+
+	/**
+	 * The method tells whether the changes after a sequence number are still kept.
+	 * @param after the last change applied, 0 for none
+	 * @return false if a snapshot is needed, or the sequence number is negative
+	 */
+	public synchronized boolean contains(long after) {
+		return after >= 0 && after <= sequence && sequence - after <= ring.length;
+	}
+
+	/**
+	 * The method returns the changes after a sequence number, waiting for one if there are none.
+	 * @param after the last change sent
+	 * @param timeout milliseconds to wait
+	 * @return the changes, empty on timeout, or null if they are no longer kept
+	 * @throws InterruptedException
+	 */
+	public synchronized List<Mutation> since(long after, long timeout) throws InterruptedException {
+		if (after == sequence)
+			wait(timeout);
+		return after(after);
+	}
+
+	/**
+	 * The method returns the changes after a sequence number without waiting.
+	 * @param after the last change seen
+	 * @return the changes, or null if they are no longer kept
+	 */
+	public synchronized List<Mutation> after(long after) {
+		if (!contains(after))
+			return null;
+		List<Mutation> mutations = new ArrayList<>((int) (sequence - after));
+		for (long next = after + 1; next <= sequence; next++) {
+			mutations.add(ring[(int) (next % ring.length)]);
+		}
+		return mutations;
+	}
+
+	public static class Mutation {
+		private final long sequence;
+		private final Resource resource;
+		private final boolean deleted;
+		private final long time;
+
+		Mutation(long sequence, Resource resource, boolean deleted, long time) {
+			this.sequence = sequence;
+			this.resource = resource;
+			this.deleted = deleted;
+			this.time = time;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public Resource getResource() {
+			return resource;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * The method writes the change as one line of the stream sent to the replicas.
+		 * @param maskOwner true to show the owner as "*", for the public stream
+		 * @return json
+		 */
+		public String toJson(boolean maskOwner) {
+			StringBuilder builder = new StringBuilder(256);
+			builder.append("{\"sequence\":").append(sequence).append(",\"time\":").append(time);
+			builder.append(",\"deleted\":").append(deleted).append(",\"resource\":");
+			JsonWriter.writeResource(maskOwner ? ServerCommandProcessor.maskOwner(resource) : resource, builder);
+			return builder.append('}').toString();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * The class checks MutationLog around the end of its ring: after n changes to a log of size k, the
+ * changes after any of the last k sequence numbers must come back in order, each with its own resource,
+ * while an older sequence number, a negative one or one the log never reached must ask for a snapshot,
+ * as a read replica or a resumed subscription reconnecting with it would be answered.
+ * Usage: java EZShare.MutationLogCheck [size, 8 by default] [changes, 20 by default]
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.List;
+
+public class MutationLogCheck {
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int changes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		MutationLog log = new MutationLog(size, 1);
+		for (int i = 1; i <= changes; i++) {
+			log.append(CatalogSummaryCheck.resource("", "", "http://example.com/" + i), i % 3 == 0);
+		}
+		boolean passed = true;
+		int replayed = 0;
+		int snapshots = 0;
+		for (long after = -1; after <= changes + 1; after++) {
+			List<MutationLog.Mutation> mutations = log.after(after);
+			boolean kept = after >= 0 && after <= changes && changes - after <= size;
+			if (log.contains(after) != kept || (mutations != null) != kept) {
+				System.out.println("after " + after + ": kept is " + log.contains(after) + ", expected " + kept);
+				passed = false;
+				continue;
+			}
+			if (!kept) {
+				snapshots++;
+				continue;
+			}
+			replayed++;
+			if (mutations.size() != changes - after) {
+				System.out.println("after " + after + ": " + mutations.size() + " changes");
+				passed = false;
+				continue;
+			}
+			for (int i = 0; i < mutations.size(); i++) {
+				MutationLog.Mutation mutation = mutations.get(i);
+				long sequence = after + 1 + i;
+				if (mutation.getSequence() != sequence || mutation.isDeleted() != (sequence % 3 == 0)
+						|| !mutation.getResource().getUri().toString().equals("http://example.com/" + sequence)) {
+					System.out.println("after " + after + ": change " + mutation.getSequence() + " where " + sequence + " was expected");
+					passed = false;
+				}
+			}
+		}
+		System.out.println(changes + " changes in a log of " + size + ": " + replayed + " sequence numbers replayed from, "
+				+ snapshots + " asked for a snapshot");
+		System.out.println(passed ? "passed" : "FAILED");
+		if (!passed)
+			System.exit(1);
+	}
+}
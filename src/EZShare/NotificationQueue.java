@@ -0,0 +1,256 @@
+/**
+ * The class is the outgoing queue of one subscription. Publishing threads and relay threads only
+ * put notifications in it; a thread of the server connection writes them to the subscriber, so a
+ * slow or stalled subscriber never holds up a publish. The queue holds ServerInfo.notificationQueueSize
+ * notifications, and what happens when it is full is set by ServerInfo.slowConsumerPolicy: the subscriber
+ * is disconnected, the oldest notification is dropped, or notifications of the same resource are merged
+ * into the latest one (and the oldest is dropped if that is not enough). The sender is told how many
+ * notifications were dropped before the ones it writes, so the subscriber can learn it missed some.
+ * Publishing threads notify outside the resources lock, so two changes of a resource may arrive in the
+ * wrong order: a change older than the last one queued for the same resource is dropped.
+ * A subscription may ask for batches: the notifications then wait up to a given latency, or until a
+ * batch is full, notifications of the same resource are merged into the latest one, and the sender
+ * gets the batch at once.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NotificationQueue {
+	public static final String DROP_OLDEST = "dropOldest";
+	public static final String COALESCE = "coalesce";
+	public static final String DISCONNECT = "disconnect";
+	private static final AtomicLong droppedNotifications = new AtomicLong();
+	private static final AtomicLong coalescedNotifications = new AtomicLong();
+	private static final AtomicLong slowConsumers = new AtomicLong();
+
+	private final LinkedHashMap<Object, Message> pending = new LinkedHashMap<>();
+	private final LinkedHashMap<Object, Long> sequences;     // the last change queued per resource, recent ones only
+	private final int capacity;
+	private final String policy;
+	private final Sender sender;
+	private final ServerConnection serverConnection;
+	private final long batchLatency;
+	private final int batchSize;
+	private long oldest = 0;
+	private boolean draining = false;
+	private boolean closed = false;
+	private long delivered = 0;
+	private long dropped = 0;
+	private long coalesced = 0;
+	private long droppedUnsent = 0;     // dropped since the last write
+
+	/**
+	 * @param capacity notifications waiting at most
+	 * @param policy DROP_OLDEST, COALESCE or DISCONNECT
+	 * @param sender writes the notifications to the subscriber
+	 * @param serverConnection runs the writing threads
+	 */
+	public NotificationQueue(int capacity, String policy, Sender sender, ServerConnection serverConnection) {
+		this(capacity, policy, 0, 0, sender, serverConnection);
+	}
+
+	/**
+	 * @param capacity notifications waiting at most
+	 * @param policy DROP_OLDEST, COALESCE or DISCONNECT
+	 * @param batchLatency milliseconds the first notification of a batch waits at most, 0 for no batches
+	 * @param batchSize notifications in a batch at most
+	 * @param sender writes the notifications to the subscriber
+	 * @param serverConnection runs the writing threads
+	 */
+	public NotificationQueue(int capacity, String policy, long batchLatency, int batchSize, Sender sender, ServerConnection serverConnection) {
+		this.capacity = Math.max(1, capacity);
+		this.sequences = new LinkedHashMap<Object, Long>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Long> eldest) {
+				return size() > NotificationQueue.this.capacity;
+			}
+		};
+		this.policy = policy;
+		this.batchLatency = Math.max(0, batchLatency);
+		this.batchSize = Math.max(1, batchSize);
+		this.sender = sender;
+		this.serverConnection = serverConnection;
+	}
+
+	public boolean isBatched() {
+		return batchLatency > 0;
+	}
+
+	/**
+	 * The method queues the notification of a change without waiting for the subscriber, unless a later
+	 * change of the same resource was queued already.
+	 * @param key identifies the resource notified
+	 * @param message
+	 * @param sequence the sequence number of the change
+	 * @return false if the subscriber is too slow under the DISCONNECT policy, or gone
+	 */
+	public synchronized boolean offer(Object key, Message message, long sequence) {
+		if (closed)
+			return false;
+		Long last = sequences.get(key);
+		if (last != null && sequence < last) {
+			coalesced++;     // superseded by the later change
+			coalescedNotifications.incrementAndGet();
+			return true;
+		}
+		sequences.put(key, sequence);
+		return offer(key, message);
+	}
+
+	/**
+	 * The method queues a notification without waiting for the subscriber.
+	 * @param key identifies the resource notified, for the COALESCE policy and batches
+	 * @param message
+	 * @return false if the subscriber is too slow under the DISCONNECT policy, or gone
+	 */
+	public synchronized boolean offer(Object key, Message message) {
+		if (closed)
+			return false;
+		boolean coalescing = COALESCE.equals(policy) || isBatched();
+		if (coalescing && pending.containsKey(key)) {
+			pending.put(key, message);     // keeps its place, with the latest version
+			coalesced++;
+			coalescedNotifications.incrementAndGet();
+			return true;
+		}
+		if (pending.size() >= capacity) {
+			if (DISCONNECT.equals(policy)) {
+				slowConsumers.incrementAndGet();
+				close();
+				return false;
+			}
+			Iterator<Object> eldest = pending.keySet().iterator();
+			eldest.next();
+			eldest.remove();
+			dropped++;
+			droppedUnsent++;
+			droppedNotifications.incrementAndGet();
+		}
+		if (pending.isEmpty())
+			oldest = System.currentTimeMillis();
+		pending.put(coalescing ? key : new Object(), message);
+		if (isBatched() && pending.size() >= batchSize)
+			notifyAll();     // a full batch doesn't wait
+		if (!draining) {
+			draining = true;
+			serverConnection.executePersistent(this::drain);
+		}
+		return true;
+	}
+
+	/**
+	 * The method waits until the notifications queued are written.
+	 * @param timeout milliseconds
+	 * @throws InterruptedException
+	 */
+	public synchronized void flush(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (!closed && (draining || !pending.isEmpty()) && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The method drops the notifications waiting and refuses new ones.
+	 */
+	public synchronized void close() {
+		closed = true;
+		pending.clear();
+		notifyAll();
+	}
+
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	public static long getDroppedNotifications() {
+		return droppedNotifications.get();
+	}
+
+	public static long getCoalescedNotifications() {
+		return coalescedNotifications.get();
+	}
+
+	public static long getSlowConsumers() {
+		return slowConsumers.get();
+	}
+
+	// writes everything waiting in one go, or batch by batch, until the queue is empty
+	private void drain() {
+		while (true) {
+			List<Message> messages;
+			long gap;
+			synchronized (this) {
+				long remaining;
+				while (isBatched() && !closed && pending.size() > 0 && pending.size() < batchSize
+						&& (remaining = oldest + batchLatency - System.currentTimeMillis()) > 0) {
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				if (closed || pending.isEmpty()) {
+					draining = false;
+					notifyAll();
+					return;
+				}
+				if (isBatched()) {
+					messages = new ArrayList<>(Math.min(batchSize, pending.size()));
+					Iterator<Message> iterator = pending.values().iterator();
+					while (messages.size() < batchSize && iterator.hasNext()) {
+						messages.add(iterator.next());
+						iterator.remove();
+					}
+				} else {
+					messages = new ArrayList<>(pending.values());
+					pending.clear();
+				}
+				gap = droppedUnsent;
+				droppedUnsent = 0;
+			}
+			boolean sent = sender.send(messages, gap);
+			synchronized (this) {
+				if (!sent) {
+					draining = false;
+					close();
+					return;
+				}
+				delivered += messages.size();
+			}
+		}
+	}
+
+	interface Sender {
+		/**
+		 * @param messages
+		 * @param dropped the notifications dropped since the last call, they came before these
+		 * @return false if the subscriber is gone
+		 */
+		boolean send(List<Message> messages, long dropped);
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * The class checks the policies of NotificationQueue with a subscriber that stalls on its first
+ * notification until the check releases it, so what the queue holds at each step doesn't depend on
+ * thread timing. Offers must return while the subscriber is stalled; then dropOldest must deliver the
+ * latest notifications after a gap of the dropped ones, coalesce must deliver the latest version of
+ * each resource, disconnect must refuse the notification that doesn't fit and everything after it, and
+ * a change older than the last one queued for its resource must be dropped. A batched subscription
+ * must get the latest version of each resource updated while it was stalled, ServerInfo.maxBatchSize
+ * at a time.
+ * Usage: java EZShare.NotificationQueueCheck
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class NotificationQueueCheck {
+	private static final int CAPACITY = 10;
+	private static final long TIMEOUT = 10000;
+
+	private final ServerConnection serverConnection = new ServerConnection();
+	private boolean passed = true;
+
+	public static void main(String[] args) throws InterruptedException {
+		NotificationQueueCheck check = new NotificationQueueCheck();
+		check.dropOldest();
+		check.coalesce();
+		check.disconnect();
+		check.staleChanges();
+		check.batches();
+		System.out.println(check.passed ? "passed" : "FAILED");
+		// the writing threads of ServerConnection are not daemons
+		System.exit(check.passed ? 0 : 1);
+	}
+
+	// 25 notifications behind a stalled one, the oldest 15 are dropped
+	private void dropOldest() throws InterruptedException {
+		StalledSender sender = new StalledSender();
+		NotificationQueue queue = stalled(NotificationQueue.DROP_OLDEST, sender);
+		long start = System.nanoTime();
+		for (int i = 1; i <= 25; i++) {
+			queue.offer("r" + i, new Message("r" + i));
+		}
+		long offered = (System.nanoTime() - start) / 1000000;
+		sender.release(queue);
+		expect("dropOldest", "25 offers while stalled took " + offered + " ms", offered < TIMEOUT);
+		expect("dropOldest", "sends " + sender.sends, sender.sends.equals(Arrays.asList(
+				"[r0]", "gap 15 [r16, r17, r18, r19, r20, r21, r22, r23, r24, r25]")));
+		expect("dropOldest", "delivered " + queue.getDelivered() + ", dropped " + queue.getDropped(),
+				queue.getDelivered() == 11 && queue.getDropped() == 15);
+	}
+
+	// 5 versions each of 4 resources merge into 4, then 8 more resources drop the 2 oldest
+	private void coalesce() throws InterruptedException {
+		StalledSender sender = new StalledSender();
+		NotificationQueue queue = stalled(NotificationQueue.COALESCE, sender);
+		for (int version = 1; version <= 5; version++) {
+			for (int i = 1; i <= 4; i++) {
+				queue.offer("r" + i, new Message("r" + i + "v" + version));
+			}
+		}
+		for (int i = 5; i <= 12; i++) {
+			queue.offer("r" + i, new Message("r" + i + "v1"));
+		}
+		sender.release(queue);
+		expect("coalesce", "sends " + sender.sends, sender.sends.equals(Arrays.asList(
+				"[r0]", "gap 2 [r3v5, r4v5, r5v1, r6v1, r7v1, r8v1, r9v1, r10v1, r11v1, r12v1]")));
+		expect("coalesce", "coalesced " + queue.getCoalesced() + ", dropped " + queue.getDropped(),
+				queue.getCoalesced() == 16 && queue.getDropped() == 2);
+	}
+
+	// the 11th notification behind a stalled one doesn't fit, the subscriber is cut off
+	private void disconnect() throws InterruptedException {
+		StalledSender sender = new StalledSender();
+		NotificationQueue queue = stalled(NotificationQueue.DISCONNECT, sender);
+		List<Boolean> accepted = new ArrayList<>();
+		for (int i = 1; i <= 12; i++) {
+			accepted.add(queue.offer("r" + i, new Message("r" + i)));
+		}
+		sender.release(queue);
+		expect("disconnect", "accepted " + accepted, accepted.indexOf(false) == CAPACITY && !accepted.get(CAPACITY + 1));
+		expect("disconnect", "sends " + sender.sends, sender.sends.equals(Arrays.asList("[r0]")));
+	}
+
+	// changes of a resource arriving out of order, the older one is dropped
+	private void staleChanges() throws InterruptedException {
+		StalledSender sender = new StalledSender();
+		NotificationQueue queue = new NotificationQueue(CAPACITY, NotificationQueue.DISCONNECT, sender, serverConnection);
+		queue.offer("r0", new Message("r0"), 1);
+		sender.entered.await();
+		queue.offer("r1", new Message("r1s5"), 5);
+		queue.offer("r1", new Message("r1s3"), 3);
+		queue.offer("r2", new Message("r2s4"), 4);
+		sender.release(queue);
+		expect("stale changes", "sends " + sender.sends, sender.sends.equals(Arrays.asList("[r0]", "[r1s5, r2s4]")));
+	}
+
+	// 50,000 updates of 2,000 resources while stalled, then batches of the latest versions
+	private void batches() throws InterruptedException {
+		StalledSender sender = new StalledSender();
+		NotificationQueue queue = stalled(new NotificationQueue(ServerInfo.notificationQueueSize * 5, NotificationQueue.DISCONNECT,
+				20, ServerInfo.maxBatchSize, sender, serverConnection), sender);
+		for (int i = 0; i < 50000; i++) {
+			queue.offer("c" + (i % 2000), new Message("c" + (i % 2000) + "v" + (i / 2000)));
+		}
+		sender.release(queue);
+		List<Integer> sizes = new ArrayList<>();
+		boolean latest = true;
+		for (String send : sender.sends.subList(1, sender.sends.size())) {
+			String[] texts = send.substring(1, send.length() - 1).split(", ");
+			sizes.add(texts.length);
+			for (String text : texts) {
+				latest &= text.endsWith("v24");
+			}
+		}
+		expect("batches", "50000 updates of 2000 resources sent as " + sizes + " after [r0], latest versions only: " + latest,
+				sizes.equals(Arrays.asList(500, 500, 500, 500)) && latest && queue.getCoalesced() == 48000);
+	}
+
+	// a queue whose subscriber is stalled on its first notification, r0
+	private NotificationQueue stalled(String policy, StalledSender sender) throws InterruptedException {
+		return stalled(new NotificationQueue(CAPACITY, policy, sender, serverConnection), sender);
+	}
+
+	private NotificationQueue stalled(NotificationQueue queue, StalledSender sender) throws InterruptedException {
+		queue.offer("r0", new Message("r0"));
+		sender.entered.await();
+		return queue;
+	}
+
+	private void expect(String name, String result, boolean condition) {
+		System.out.println(name + ": " + result + (condition ? "" : " - unexpected"));
+		passed &= condition;
+	}
+
+	private static class StalledSender implements NotificationQueue.Sender {
+		private final CountDownLatch entered = new CountDownLatch(1);
+		private final CountDownLatch released = new CountDownLatch(1);
+		private final List<String> sends = new ArrayList<>();
+
+		@Override
+		public boolean send(List<Message> messages, long dropped) {
+			List<String> texts = new ArrayList<>();
+			for (Message message : messages) {
+				texts.add(message.getMessage());
+			}
+			synchronized (sends) {
+				sends.add((dropped > 0 ? "gap " + dropped + " " : "") + texts);
+			}
+			entered.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				return false;
+			}
+			return true;
+		}
+
+		// lets the subscriber go and waits until it has read everything
+		private void release(NotificationQueue queue) throws InterruptedException {
+			released.countDown();
+			queue.flush(TIMEOUT);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * The class keeps warm outbound connections to other servers so that relayed queries and exchanges
+ * don't pay a new TCP (and TLS) handshake every time. Connections are kept per peer, checked before
+ * they are reused, evicted when idle for too long and capped by ServerInfo.maxConnectionsPerPeer.
+ * A connection is only pooled when the peer said it keeps it open (MessageStream.KEEP_ALIVE_ACK); an
+ * older server, or one with as many connections kept alive as it allows, closes it after the reply.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+public class PeerConnectionPool {
+	private static Logger logger = Logger.getLogger(PeerConnectionPool.class);
+
+	private ServerConnection serverConnection;
+	private Map<String, PeerPool> pools;
+	private Map<String, PeerPool> securePools;
+	private ScheduledExecutorService evictor;
+
+	public PeerConnectionPool(ServerConnection serverConnection) {
+		this.serverConnection = serverConnection;
+		this.pools = new ConcurrentHashMap<>();
+		this.securePools = new ConcurrentHashMap<>();
+		this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, ServerInfo.connectionIdleTimeout / 2);
+		evictor.scheduleAtFixedRate(() -> evictIdleConnections(), period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * The method borrows a connection to the peer. A pooled connection is returned if a healthy one
+	 * is idle, otherwise a new one is opened. Blocks while the peer already has the maximum number
+	 * of connections in use.
+	 * @param serverBean the peer
+	 * @param secure whether to use the secure port
+	 * @return a connection, never null
+	 * @throws IOException if no connection can be made
+	 */
+	public PeerConnection borrow(ServerBean serverBean, boolean secure) throws IOException {
+		return borrow(serverBean, secure, ServerInfo.timeout * 1000);
+	}
+
+	/**
+	 * The method is borrow with its own timeout, to wait for a free connection and to connect.
+	 * @param serverBean the peer
+	 * @param secure whether to use the secure port
+	 * @param timeout in milliseconds
+	 * @return a connection, never null
+	 * @throws IOException if no connection can be made
+	 */
+	public PeerConnection borrow(ServerBean serverBean, boolean secure, int timeout) throws IOException {
+		PeerPool pool = poolOf(serverBean, secure);
+		try {
+			if (!pool.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+				throw new IOException("too many connections to " + serverBean);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for " + serverBean);
+		}
+		try {
+			PeerConnection connection;
+			while ((connection = pool.poll()) != null) {
+				if (connection.isHealthy()) {
+					connection.reused = true;
+					return connection;
+				}
+				// the peer closed it after ServerInfo.keepAliveTimeout
+				connection.close();
+			}
+			Socket socket = serverConnection.openSocket(serverBean, secure, timeout);
+			return new PeerConnection(serverBean, secure, socket);
+		} catch (IOException e) {
+			pool.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * The method gives a connection back once the whole reply has been read. Broken connections and
+	 * connections the peer doesn't keep open are closed instead of pooled.
+	 * @param connection the connection borrowed by borrow()
+	 * @param reusable false if the conversation failed half way or the peer closes the connection
+	 */
+	public void release(PeerConnection connection, boolean reusable) {
+		PeerPool pool = poolOf(connection.serverBean, connection.secure);
+		try {
+			if (reusable && !connection.socket.isClosed()) {
+				connection.lastUsed = System.currentTimeMillis();
+				pool.offer(connection);
+			} else {
+				connection.close();
+			}
+		} finally {
+			pool.permits.release();
+		}
+	}
+
+	/**
+	 * The method closes all the idle connections to a peer, e.g. when it is removed from the server list.
+	 * @param serverBean
+	 * @param secure
+	 */
+	public void evict(ServerBean serverBean, boolean secure) {
+		PeerPool pool = (secure ? securePools : pools).remove(serverBean.toString());
+		if (pool != null) {
+			pool.closeAll();
+		}
+	}
+
+	// keyed by hostname:port, which needs no address lookup
+	private PeerPool poolOf(ServerBean serverBean, boolean secure) {
+		return (secure ? securePools : pools).computeIfAbsent(serverBean.toString(), key -> new PeerPool());
+	}
+
+	private void evictIdleConnections() {
+		long deadline = System.currentTimeMillis() - ServerInfo.connectionIdleTimeout * 1000L;
+		for (Map<String, PeerPool> map : Arrays.asList(pools, securePools)) {
+			map.forEach((server, pool) -> {
+				int evicted = pool.closeIdle(deadline);
+				if (evicted > 0)
+					logger.debug("Evicted " + evicted + " idle connection(s) to: " + server);
+			});
+		}
+	}
+
+	/**
+	 * Idle connections and in-use permits of one peer.
+	 */
+	private static class PeerPool {
+		private final Deque<PeerConnection> idle = new LinkedList<>();
+		private final Semaphore permits = new Semaphore(ServerInfo.maxConnectionsPerPeer, true);
+
+		synchronized PeerConnection poll() {
+			return idle.pollFirst();
+		}
+
+		synchronized void offer(PeerConnection connection) {
+			idle.addFirst(connection);
+		}
+
+		synchronized int closeIdle(long deadline) {
+			int evicted = 0;
+			Iterator<PeerConnection> iterator = idle.iterator();
+			while (iterator.hasNext()) {
+				PeerConnection connection = iterator.next();
+				if (connection.lastUsed < deadline) {
+					iterator.remove();
+					connection.close();
+					evicted++;
+				}
+			}
+			return evicted;
+		}
+
+		synchronized void closeAll() {
+			idle.forEach(connection -> connection.close());
+			idle.clear();
+		}
+	}
+
+	/**
+	 * One outbound connection. Reads go through a pushback stream so that the health check
+	 * can peek for an end of stream without losing data.
+	 */
+	public static class PeerConnection {
+		private final ServerBean serverBean;
+		private final boolean secure;
+		private final Socket socket;
+		private final PushbackInputStream pushbackStream;
+		private final MessageStream messageStream;
+		private volatile long lastUsed;
+		private boolean reused;
+
+		PeerConnection(ServerBean serverBean, boolean secure, Socket socket) throws IOException {
+			this.serverBean = serverBean;
+			this.secure = secure;
+			this.socket = socket;
+			this.pushbackStream = new PushbackInputStream(socket.getInputStream());
+			this.messageStream = new MessageStream(new DataInputStream(pushbackStream), new DataOutputStream(socket.getOutputStream()));
+			this.messageStream.setMaxFrameSize(ServerInfo.maxPeerFrameSize);     // replies of the server asked
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public Socket getSocket() {
+			return socket;
+		}
+
+		public MessageStream getMessageStream() {
+			return messageStream;
+		}
+
+		public boolean isReused() {
+			return reused;
+		}
+
+		// an idle connection must have nothing to read; end of stream or stray bytes mean it's unusable
+		boolean isHealthy() {
+			if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+				return false;
+			try {
+				socket.setSoTimeout(1);
+				int b = pushbackStream.read();
+				if (b != -1) {
+					pushbackStream.unread(b);
+				}
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				try {
+					if (!socket.isClosed())
+						socket.setSoTimeout(ServerInfo.timeout * 1000);
+				} catch (IOException e) {
+					// closed while checking
+				}
+			}
+		}
+
+		void close() {
+			messageStream.end();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
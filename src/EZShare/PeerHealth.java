@@ -0,0 +1,76 @@
+/**
+ * The class is the circuit breaker of one peer, fed by the outcome of every relayed query, exchange
+ * and relayed subscription. It is closed while the peer answers. After ServerInfo.breakerFailures
+ * failures in a row it opens, and the query path skips the peer without trying to connect. After
+ * ServerInfo.breakerOpenTime it lets one request through (half-open): a success closes it again, a
+ * failure opens it for another period. A peer is only evicted from the server list once it has been
+ * failing for ServerInfo.peerEvictionTime.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+public class PeerHealth {
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	private int state = CLOSED;
+	private int consecutiveFailures = 0;
+	private long failingSince = 0;
+	private long openedAt = 0;
+	private long probeStartedAt = 0;
+
+	/**
+	 * The method tells whether a request may be sent to the peer. In the half-open state only one
+	 * probe is let through at a time; a probe that never reports back expires after the open time.
+	 * @return true if the request should be sent
+	 */
+	public synchronized boolean allowRequest() {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case OPEN:
+			if (now - openedAt < ServerInfo.breakerOpenTime * 1000L)
+				return false;
+			state = HALF_OPEN;
+			probeStartedAt = now;
+			return true;
+		case HALF_OPEN:
+			if (now - probeStartedAt < ServerInfo.breakerOpenTime * 1000L)
+				return false;
+			probeStartedAt = now;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		state = CLOSED;
+		consecutiveFailures = 0;
+		failingSince = 0;
+	}
+
+	public synchronized void recordFailure() {
+		long now = System.currentTimeMillis();
+		if (consecutiveFailures++ == 0)
+			failingSince = now;
+		if (state == HALF_OPEN || (state == CLOSED && consecutiveFailures >= ServerInfo.breakerFailures)) {
+			state = OPEN;
+			openedAt = now;
+		}
+	}
+
+	/**
+	 * The method tells whether the peer has been failing long enough to be removed from the server list.
+	 * @return true after ServerInfo.peerEvictionTime of failures with no success
+	 */
+	public synchronized boolean shouldEvict() {
+		return consecutiveFailures > 0 && System.currentTimeMillis() - failingSince >= ServerInfo.peerEvictionTime * 1000L;
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * The class tracks how long a peer takes to send the first line of its answers: an exponentially weighted
+ * moving average and the last samples, from which percentiles are taken. The relay uses it to
+ * order peers, to size their timeouts and to decide when to send a hedged request.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.Arrays;
+
+public class PeerLatency {
+	private static final double ALPHA = 0.2;
+	private static final int SAMPLES = 256;
+
+	private final long[] samples = new long[SAMPLES];
+	private int count = 0;
+	private int next = 0;
+	private double ewma = 0;
+
+	public synchronized void record(long millis) {
+		ewma = count == 0 ? millis : ALPHA * millis + (1 - ALPHA) * ewma;
+		samples[next] = millis;
+		next = (next + 1) % SAMPLES;
+		if (count < SAMPLES)
+			count++;
+	}
+
+	/**
+	 * The method returns the moving average, 0 for a peer never measured so that it is tried early.
+	 * @return milliseconds
+	 */
+	public synchronized double getEwma() {
+		return ewma;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * The method returns a percentile of the last samples.
+	 * @param percentile between 0 and 100
+	 * @return milliseconds, -1 until ServerInfo.latencyMinSamples samples were recorded
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count < ServerInfo.latencyMinSamples)
+			return -1;
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * The method returns the timeout for the peer: a few times its p99, within the relay timeout.
+	 * @param defaultTimeout milliseconds, used until the peer has enough samples
+	 * @return milliseconds
+	 */
+	public int getTimeout(int defaultTimeout) {
+		long p99 = getPercentile(99);
+		if (p99 < 0)
+			return defaultTimeout;
+		return (int) Math.max(1000, Math.min(defaultTimeout, p99 * 4));
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * The class is one relayed query in flight, shared by every client that asks the same query while
+ * it runs. The relay threads add the resources they receive, and each client reads them from its own
+ * cursor, so a client joining late still gets the results that arrived before it. The results every
+ * client has read are dropped, and from then on the flight can't be joined: it holds at most
+ * ServerInfo.relayQueueSize results, as the relay threads wait while the slowest client is that far behind.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RelayFlight {
+	private final List<Resource> results = new ArrayList<>();     // from the first result no client has read
+	private long dropped = 0;     // results read by every client and dropped, cursors count them
+	private final List<Cursor> cursors = new ArrayList<>();
+	private final long deadline;
+	private boolean finished = false;
+	private boolean abandoned = false;
+	private List<ServerBean> unanswered;
+
+	/**
+	 * @param deadline when the relay gives up, in System.currentTimeMillis() time
+	 */
+	public RelayFlight(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * The method registers a client. It starts reading from the first result.
+	 * @return the cursor of the client, or null if results were dropped or every client went away
+	 */
+	public synchronized Cursor join() {
+		if (abandoned || dropped > 0)
+			return null;
+		Cursor cursor = new Cursor();
+		cursors.add(cursor);
+		return cursor;
+	}
+
+	/**
+	 * The method unregisters a client that went away.
+	 * @param cursor
+	 */
+	public synchronized void leave(Cursor cursor) {
+		cursors.remove(cursor);
+		if (cursors.isEmpty()) {
+			abandoned = true;
+			results.clear();
+		} else {
+			dropRead();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * The method adds a relayed resource. Called by the relay threads.
+	 * @param resource
+	 * @return false if every client went away and the relay can stop
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean add(Resource resource) throws InterruptedException {
+		long remaining;
+		while (cursors.size() > 0 && dropped + results.size() - slowest() >= ServerInfo.relayQueueSize
+				&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+		if (abandoned)
+			return false;
+		results.add(resource);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * The method ends the flight once every server answered or the deadline passed.
+	 * @param unanswered the servers that did not answer in time
+	 */
+	public synchronized void finish(List<ServerBean> unanswered) {
+		this.unanswered = unanswered;
+		this.finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * The method returns the results the client has not read yet, waiting for some if there are none.
+	 * @param cursor the client
+	 * @param timeout when to stop waiting, in System.currentTimeMillis() time
+	 * @return the new results, or null once the flight finished and everything was read, or on timeout
+	 * @throws InterruptedException
+	 */
+	public synchronized List<Resource> next(Cursor cursor, long timeout) throws InterruptedException {
+		long remaining;
+		while (cursor.position == dropped + results.size() && !finished) {
+			remaining = timeout - System.currentTimeMillis();
+			if (remaining <= 0)
+				return null;
+			wait(remaining);
+		}
+		if (cursor.position == dropped + results.size())
+			return null;
+		List<Resource> batch = new ArrayList<>(results.subList((int) (cursor.position - dropped), results.size()));
+		cursor.position = dropped + results.size();
+		dropRead();
+		notifyAll();
+		return batch;
+	}
+
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return the servers that did not answer in time, null until the flight finished
+	 */
+	public synchronized List<ServerBean> getUnanswered() {
+		return unanswered;
+	}
+
+	// drops the results every client has read
+	private void dropRead() {
+		int read = (int) (slowest() - dropped);
+		if (read > 0) {
+			results.subList(0, read).clear();
+			dropped += read;
+		}
+	}
+
+	private long slowest() {
+		long slowest = Long.MAX_VALUE;
+		for (Cursor cursor : cursors) {
+			slowest = Math.min(slowest, cursor.position);
+		}
+		return slowest;
+	}
+
+	public static class Cursor {
+		private long position = 0;     // results read, dropped ones included
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * The class shares the subscriptions relayed to the other servers between the local subscribers.
+ * Subscribers with the same template get one subscription on each server, keyed by the server and
+ * the template (tags sorted, since their order doesn't matter), and every result it sends is handed
+ * to each of them. The relayed subscription is unsubscribed when its last subscriber goes away, so
+ * the connections to the other servers grow with the distinct templates, not with the subscribers.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+import org.apache.wink.json4j.JSONException;
+
+public class RelaySubscriptions {
+	private static Logger logger = Logger.getLogger(RelaySubscriptions.class);
+
+	private final Map<String, Upstream> upstreams = new HashMap<>();
+	private final Map<ServerCommandProcessor.Subscriber, Set<String>> attached = new HashMap<>();
+
+	/**
+	 * The method relays a subscription to a server, or joins the relayed subscription with the same template.
+	 * @param serverBean
+	 * @param template the template of the subscriber
+	 * @param secure
+	 * @param subscriber
+	 */
+	public synchronized void attach(ServerBean serverBean, Resource template, boolean secure, ServerCommandProcessor.Subscriber subscriber) {
+		if (subscriber.getState() != ServerCommandProcessor.Subscriber.RUNNING)
+			return;
+		String templateJson = normalize(template);
+		String key = (secure ? "secure " : "") + serverBean + " " + templateJson;
+		Upstream upstream = upstreams.get(key);
+		if (upstream == null) {
+			upstream = new Upstream(key, serverBean, templateJson, secure);
+			upstreams.put(key, upstream);
+			upstream.subscribers.add(subscriber);
+			upstream.start();
+		} else {
+			upstream.subscribers.add(subscriber);
+		}
+		attached.computeIfAbsent(subscriber, s -> new HashSet<>()).add(key);
+	}
+
+	/**
+	 * The method takes a subscriber out of its relayed subscriptions, those left without subscribers are
+	 * unsubscribed. The unsubscribe is written outside the lock.
+	 * @param subscriber
+	 */
+	public void detach(ServerCommandProcessor.Subscriber subscriber) {
+		for (Upstream upstream : remove(subscriber)) {
+			upstream.stopped.complete(null);
+		}
+	}
+
+	/**
+	 * @return the subscriptions relayed to other servers
+	 */
+	public synchronized int size() {
+		return upstreams.size();
+	}
+
+	/**
+	 * @return the local subscribers attached to relayed subscriptions, once per server
+	 */
+	public synchronized int getAttachments() {
+		int attachments = 0;
+		for (Upstream upstream : upstreams.values()) {
+			attachments += upstream.subscribers.size();
+		}
+		return attachments;
+	}
+
+	// the relayed subscriptions left without subscribers
+	private synchronized List<Upstream> remove(ServerCommandProcessor.Subscriber subscriber) {
+		List<Upstream> unused = new ArrayList<>();
+		Set<String> keys = attached.remove(subscriber);
+		if (keys == null)
+			return unused;
+		for (String key : keys) {
+			Upstream upstream = upstreams.get(key);
+			if (upstream == null)
+				continue;
+			upstream.subscribers.remove(subscriber);
+			if (upstream.subscribers.isEmpty()) {
+				upstreams.remove(key);
+				unused.add(upstream);
+			}
+		}
+		return unused;
+	}
+
+	private synchronized List<ServerCommandProcessor.Subscriber> subscribersOf(Upstream upstream) {
+		return new ArrayList<>(upstream.subscribers);
+	}
+
+	// the relayed subscription ended on its own, e.g. the server went away
+	private synchronized void ended(Upstream upstream) {
+		if (upstreams.remove(upstream.key, upstream)) {
+			for (ServerCommandProcessor.Subscriber subscriber : upstream.subscribers) {
+				Set<String> keys = attached.get(subscriber);
+				if (keys != null)
+					keys.remove(upstream.key);
+			}
+		}
+	}
+
+	private static String normalize(Resource template) {
+		Resource normalized = template;
+		try {
+			normalized = template.clone();
+			normalized.setTags(template.getTags().stream().distinct().sorted().collect(Collectors.toList()));
+		} catch (CloneNotSupportedException e) {
+			e.printStackTrace();
+		}
+		return JsonWriter.toJson(normalized);
+	}
+
+	// one subscription on one server, its results go to every subscriber attached
+	private class Upstream implements ServerConnection.MessageListener {
+		private final String key;
+		private final ServerBean serverBean;
+		private final String templateJson;
+		private final boolean secure;
+		private final String id = UUID.randomUUID().toString();
+		private final Set<ServerCommandProcessor.Subscriber> subscribers = new LinkedHashSet<>();
+		private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+
+		Upstream(String key, ServerBean serverBean, String templateJson, boolean secure) {
+			this.key = key;
+			this.serverBean = serverBean;
+			this.templateJson = templateJson;
+			this.secure = secure;
+		}
+
+		void start() {
+			StringBuilder subscribeBuilder = new StringBuilder("{\"command\":\"SUBSCRIBE\",\"relay\":false,\"id\":");
+			JsonWriter.quote(id, subscribeBuilder);
+			String subscribeRequest = subscribeBuilder.append(",\"resourceTemplate\":").append(templateJson).append('}').toString();
+			StringBuilder unsubscribeBuilder = new StringBuilder("{\"command\":\"UNSUBSCRIBE\",\"id\":");
+			JsonWriter.quote(id, unsubscribeBuilder);
+			String unsubscribeRequest = unsubscribeBuilder.append('}').toString();
+			ServerConnection serverConnection = ServerCore.getInstance().getServerConnection();
+			serverConnection.executePersistent(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serverConnection.establishPersistentConnection(serverBean, new Message(subscribeRequest), Upstream.this, new ServerConnection.StateListener() {
+							@Override
+							public void onForceStop(MessageStream messageStream) {
+								try {
+									messageStream.writeMessage(unsubscribeRequest);
+									messageStream.flush();
+								} catch (IOException e) {
+									logger.debug("Could not unsubscribe from: " + serverBean);
+								}
+							}
+						}, stopped, secure);
+					} finally {
+						ended(Upstream.this);
+					}
+				}
+			});
+		}
+
+		@Override
+		public boolean onMessageReceived(Message message, MessageStream messageStream) {
+			try {
+				// forward resources only, not the response and resultSize lines
+				Resource resource = message.getType() == MessageType.RESOURCE ? message.getResource() : Resource.parseJson(new JsonReader(message.getMessage()));
+				if (resource == null)
+					return false;
+				List<ServerCommandProcessor.Subscriber> receivers = subscribersOf(this);
+				for (ServerCommandProcessor.Subscriber subscriber : receivers) {
+					subscriber.onRelayed(resource, message);
+				}
+				return receivers.isEmpty();
+			} catch (JSONException e) {
+				e.printStackTrace();
+				return true;
+			}
+		}
+	}
+}
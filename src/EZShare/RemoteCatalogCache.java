@@ -0,0 +1,258 @@
+/**
+ * The class keeps copies of the catalogs of other servers, so that relayed queries can be answered
+ * here. Each copy follows the public change stream of its server (REPLICATE with "public":true and the
+ * secret, the owners masked, served by servers started with -publicstream): a snapshot, then every
+ * publish, share and remove as it happens, and a heartbeat when nothing changes. Servers that don't
+ * serve it, or have another secret, are not followed. A copy only answers queries while its server was heard from within
+ * ServerInfo.remoteCacheStaleness; otherwise the server is asked as usual. A server leaving the server
+ * list drops its copy. The copies hold ServerInfo.remoteCacheSize resources at most, the copy used least
+ * recently is dropped first, whole, since a partial copy would miss results.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.wink.json4j.JSONException;
+
+public class RemoteCatalogCache {
+	private static Logger logger = Logger.getLogger(RemoteCatalogCache.class);
+	private static final AtomicLong cachedAnswers = new AtomicLong();
+	private static final AtomicLong droppedCopies = new AtomicLong();
+
+	private final ServerConnection serverConnection;
+	private final Map<String, PeerCatalog> peers = new LinkedHashMap<>(16, 0.75f, true);     // least recently queried first
+	private final Map<String, Long> dropped = new HashMap<>();     // copies dropped for room, not followed again for a while
+	private int size = 0;
+
+	public RemoteCatalogCache(ServerConnection serverConnection) {
+		this.serverConnection = serverConnection;
+	}
+
+	/**
+	 * The method follows the servers of the server list that have no copy yet, drops the copies of the
+	 * servers that left it and reconnects to servers silent for three heartbeats. Called periodically.
+	 * @param servers the server list
+	 * @param myServer this server, not followed
+	 */
+	public synchronized void maintain(List<ServerBean> servers, ServerBean myServer) {
+		long now = System.currentTimeMillis();
+		Set<String> keys = new HashSet<>();
+		for (ServerBean server : servers) {
+			String key = server.toString();
+			if (key.equals(myServer.toString()))
+				continue;
+			keys.add(key);
+			Long droppedAt = dropped.get(key);
+			if (peers.containsKey(key) || peers.size() >= ServerInfo.remoteCachePeers
+					|| (droppedAt != null && now - droppedAt < ServerInfo.remoteCacheStaleness * 10000L))
+				continue;
+			PeerCatalog peer = new PeerCatalog(server);
+			peers.put(key, peer);
+			peer.start();
+		}
+		Iterator<PeerCatalog> iterator = peers.values().iterator();
+		while (iterator.hasNext()) {
+			PeerCatalog peer = iterator.next();
+			if (!keys.contains(peer.server.toString())) {
+				iterator.remove();
+				size -= peer.resources.size();
+				peer.stop();
+			} else if (now - peer.lastHeard > ServerInfo.replicationHeartbeat * 3000L) {
+				peer.reconnect();
+			}
+		}
+		dropped.values().removeIf(droppedAt -> now - droppedAt >= ServerInfo.remoteCacheStaleness * 10000L);
+	}
+
+	/**
+	 * The method answers a relayed query for a server from its copy.
+	 * @param server
+	 * @param template the relayed template
+	 * @return the matching resources, or null if there is no fresh copy and the server has to be asked
+	 */
+	public synchronized List<Resource> query(ServerBean server, Resource template) {
+		PeerCatalog peer = peers.get(server.toString());
+		if (peer == null || !peer.synced || System.currentTimeMillis() - peer.lastHeard > ServerInfo.remoteCacheStaleness * 1000L)
+			return null;
+		List<Resource> results = new ArrayList<>();
+		for (Resource resource : peer.resources.values()) {
+			if (ServerCommandProcessor.matches(template, resource))
+				results.add(resource);
+		}
+		cachedAnswers.incrementAndGet();
+		return results;
+	}
+
+	public static long getCachedAnswers() {
+		return cachedAnswers.get();
+	}
+
+	public static long getDroppedCopies() {
+		return droppedCopies.get();
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// drops the copies used least recently, but not the one that just grew
+	private void evict(PeerCatalog keep) {
+		Iterator<PeerCatalog> iterator = peers.values().iterator();
+		while (size > ServerInfo.remoteCacheSize && iterator.hasNext()) {
+			PeerCatalog peer = iterator.next();
+			if (peer == keep)
+				continue;
+			iterator.remove();
+			size -= peer.resources.size();
+			peer.stop();
+			dropped.put(peer.server.toString(), System.currentTimeMillis());
+			droppedCopies.incrementAndGet();
+		}
+		if (size > ServerInfo.remoteCacheSize && peers.get(keep.server.toString()) == keep) {
+			// too big on its own
+			peers.remove(keep.server.toString());
+			size -= keep.resources.size();
+			keep.stop();
+			dropped.put(keep.server.toString(), System.currentTimeMillis());
+			droppedCopies.incrementAndGet();
+		}
+	}
+
+	private static String key(Resource resource) {
+		return resource.getChannel() + "\0" + resource.getUri();
+	}
+
+	// the copy of the catalog of one server, fed by its change stream
+	private class PeerCatalog implements ServerConnection.MessageListener {
+		private final ServerBean server;
+		private final Map<String, Resource> resources = new HashMap<>();
+		private volatile long lastHeard = System.currentTimeMillis();
+		private volatile boolean closed = false;
+		private volatile CompletableFuture<Void> stopped = new CompletableFuture<>();
+		private boolean synced = false;
+		private long epoch = -1;
+		private long sequence = 0;
+		private List<Resource> snapshot = null;
+
+		PeerCatalog(ServerBean server) {
+			this.server = server;
+		}
+
+		void start() {
+			serverConnection.executePersistent(new Runnable() {
+				@Override
+				public void run() {
+					while (!closed) {
+						StringBuilder request = new StringBuilder("{\"command\":\"REPLICATE\",\"public\":true,\"secret\":");
+						JsonWriter.quote(ServerInfo.secret, request);
+						synchronized (RemoteCatalogCache.this) {
+							if (epoch >= 0)
+								request.append(",\"epoch\":").append(epoch).append(",\"fromSequence\":").append(sequence);
+							snapshot = null;
+						}
+						lastHeard = System.currentTimeMillis();
+						serverConnection.establishPersistentConnection(server, new Message(request.append('}').toString()), PeerCatalog.this, messageStream -> {}, stopped, false);
+						stopped = new CompletableFuture<>();
+						synchronized (RemoteCatalogCache.this) {
+							synced = false;     // until it caught up again
+						}
+						try {
+							Thread.sleep(ServerInfo.connectionInterval * 1000);   //milliseconds
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			});
+		}
+
+		void reconnect() {
+			logger.debug("No heartbeat, reconnecting to: " + server);
+			stopped.complete(null);
+		}
+
+		void stop() {
+			closed = true;
+			stopped.complete(null);
+		}
+
+		@Override
+		public boolean onMessageReceived(Message message, MessageStream messageStream) {
+			lastHeard = System.currentTimeMillis();
+			if (closed)
+				return true;
+			try {
+				synchronized (RemoteCatalogCache.this) {
+					if (message.getType() == MessageType.RESOURCE) {
+						if (snapshot != null)
+							snapshot.add(message.getResource());
+						return false;
+					}
+					if (message.getType() != MessageType.STRING)
+						return false;
+					if (snapshot != null && !message.getMessage().contains("\"snapshotEnd\"")) {
+						Resource resource = Resource.parseJson(new JsonReader(message.getMessage()));
+						if (resource != null)
+							snapshot.add(resource);
+						return false;
+					}
+					Command line = Command.parseReply(message.getMessage());
+					if (line.getResponse() != null) {
+						if (!line.getResponse().equals("success")) {
+							if (epoch < 0 && !message.getMessage().contains("\"too many streams\"")) {
+								// no public stream there, or another secret: it is always asked
+								logger.debug("No public stream on: " + server);
+								closed = true;
+							}
+							return true;
+						}
+						epoch = line.getEpoch();
+						if (line.isSnapshot()) {
+							snapshot = new ArrayList<>();
+						} else {
+							synced = true;     // caught up from where it was
+						}
+					} else if (line.isSnapshotEnd()) {
+						size -= resources.size();
+						resources.clear();
+						for (Resource resource : snapshot) {
+							resources.put(key(resource), resource);
+						}
+						size += resources.size();
+						snapshot = null;
+						sequence = line.getSequence();
+						synced = true;
+						evict(this);
+					} else if (line.getSequence() != null && line.getResource() != null) {
+						Resource resource = line.getResource();
+						size -= resources.size();
+						if (line.isDeleted())
+							resources.remove(key(resource));
+						else
+							resources.put(key(resource), resource);
+						size += resources.size();
+						sequence = line.getSequence();
+						evict(this);
+					}
+					return closed;
+				}
+			} catch (JSONException e) {
+				e.printStackTrace();
+				return true;
+			}
+		}
+	}
+}
@@ -204,6 +204,86 @@ public class Resource implements Cloneable {
 		return resource;
     }
 
+    /**
+     * The method is to read a resource object from a command being decoded, without building a
+     * json object. Like parseJson, it only accepts objects with all the required fields.
+     * @param reader positioned on the resource object
+     * @return resource or null if a field is missing
+     * @throws JSONException if the json is malformed
+     */
+    public static Resource parseJson(JsonReader reader) throws JSONException {
+    	Resource resource = new Resource();
+    	resource.setTags(new ArrayList<>());
+    	int fields = 0;
+    	String uriString = null;
+    	reader.beginObject();
+    	while (reader.hasNextField()) {
+    		String field = reader.nextName();
+    		switch (field) {
+    		case "name":
+    			resource.setName(nullToEmpty(reader.nextScalar()));
+    			fields |= 1;
+    			break;
+    		case "tags":
+    			if (reader.isNextArray()) {
+    				reader.beginArray();
+    				while (reader.hasNextElement()) {
+    					resource.getTags().add(nullToEmpty(reader.nextScalar()));
+    				}
+    			} else {
+    				reader.skipValue();
+    			}
+    			fields |= 2;
+    			break;
+    		case "description":
+    			resource.setDescription(nullToEmpty(reader.nextScalar()));
+    			fields |= 4;
+    			break;
+    		case "uri":
+    			uriString = nullToEmpty(reader.nextScalar());
+    			fields |= 8;
+    			break;
+    		case "channel":
+    			resource.setChannel(nullToEmpty(reader.nextScalar()));
+    			fields |= 16;
+    			break;
+    		case "owner":
+    			resource.setOwner(nullToEmpty(reader.nextScalar()));
+    			fields |= 32;
+    			break;
+    		case "ezserver":
+    			String ezServerString = nullToEmpty(reader.nextScalar());
+    			int colon = ezServerString.lastIndexOf(':');
+    			if (colon > 0) {
+    				try {
+    					resource.setServerBean(new ServerBean(ezServerString.substring(0, colon), Integer.parseInt(ezServerString.substring(colon + 1))));
+    				} catch (NumberFormatException e) {
+    					e.printStackTrace();
+    				}
+    			}
+    			fields |= 64;
+    			break;
+    		case "resourceSize":
+    			resource.setSize(reader.nextLong());
+    			break;
+    		default:
+    			reader.skipValue();
+    		}
+    	}
+    	if (fields != 127)
+    		return null;
+    	try {
+    		resource.setUri(new URI(uriString));
+    	} catch (URISyntaxException e) {
+    		e.printStackTrace();
+    	}
+    	return resource;
+    }
+
+    private static String nullToEmpty(String string) {
+    	return string == null ? "" : string;
+    }
+
     /**
      * The method is to check whether a resource is in the record.
      * @param obj
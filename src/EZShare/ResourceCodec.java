@@ -0,0 +1,161 @@
+/**
+ * The class encodes resources in a compact binary layout for connections that negotiated it
+ * ("encoding":"binary"), mostly server-to-server relay. It writes and reads the Resource fields
+ * directly, without building JSON objects, and round-trips exactly with Resource.toJson/parseJson:
+ * missing strings become "", a missing uri becomes the empty URI and the size is only kept when positive.
+ * Layout: a version byte, then name, description, uri, channel, owner, ezserver hostname as
+ * varint-length UTF-8 strings, the ezserver port as a varint (0 when there is no ezserver),
+ * the tag count and tags, and the size as a varint.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResourceCodec {
+	private static final int VERSION = 1;
+
+	private byte[] buffer = new byte[256];
+	private int position;
+
+	/**
+	 * The method encodes a resource. The returned array is reused by the next call.
+	 * @param resource
+	 * @return the codec's buffer, valid up to length()
+	 */
+	public byte[] encode(Resource resource) {
+		position = 0;
+		writeVarint(VERSION);
+		writeString(resource.getName());
+		writeString(resource.getDescription());
+		writeString(resource.getUri() == null ? null : resource.getUri().toString());
+		writeString(resource.getChannel());
+		writeString(resource.getOwner());
+		ServerBean serverBean = resource.getServerBean();
+		writeString(serverBean == null ? null : serverBean.getHostname());
+		writeVarint(serverBean == null ? 0 : serverBean.getPort());
+		List<String> tags = resource.getTags();
+		writeVarint(tags == null ? 0 : tags.size());
+		if (tags != null) {
+			for (String tag : tags) {
+				writeString(tag);
+			}
+		}
+		writeVarint(resource.getSize() > 0 ? resource.getSize() : 0);
+		return buffer;
+	}
+
+	public int length() {
+		return position;
+	}
+
+	/**
+	 * The method decodes a resource encoded by encode().
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return resource
+	 * @throws IOException if the bytes are not a valid encoding
+	 */
+	public static Resource decode(byte[] bytes, int offset, int length) throws IOException {
+		Reader reader = new Reader(bytes, offset, offset + length);
+		if (reader.readVarint() != VERSION)
+			throw new IOException("unknown resource encoding");
+		Resource resource = new Resource();
+		resource.setName(reader.readString());
+		resource.setDescription(reader.readString());
+		try {
+			resource.setUri(new URI(reader.readString()));
+		} catch (URISyntaxException e) {
+			throw new IOException("invalid uri", e);
+		}
+		resource.setChannel(reader.readString());
+		resource.setOwner(reader.readString());
+		String hostname = reader.readString();
+		int port = (int) reader.readVarint();
+		if (!hostname.equals("")) {
+			resource.setServerBean(new ServerBean(hostname, port));
+		}
+		long tagCount = reader.readVarint();
+		// every tag takes a byte at least, a larger count is corrupt and must not size the list
+		if (tagCount < 0 || tagCount > reader.end - reader.position)
+			throw new IOException("invalid tag count");
+		List<String> tags = new ArrayList<>((int) tagCount);
+		for (int i = 0; i < tagCount; i++) {
+			tags.add(reader.readString());
+		}
+		resource.setTags(tags);
+		resource.setSize(reader.readVarint());
+		if (reader.position != reader.end)
+			throw new IOException("trailing bytes in resource");
+		return resource;
+	}
+
+	private void writeString(String string) {
+		if (string == null || string.isEmpty()) {
+			writeVarint(0);
+			return;
+		}
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void writeVarint(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (position + extra > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+	}
+
+	private static class Reader {
+		private final byte[] bytes;
+		private int position;
+		private final int end;
+
+		Reader(byte[] bytes, int position, int end) {
+			this.bytes = bytes;
+			this.position = position;
+			this.end = end;
+		}
+
+		long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= end)
+					throw new IOException("truncated resource");
+				byte b = bytes[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("invalid varint");
+		}
+
+		String readString() throws IOException {
+			long length = readVarint();
+			if (length < 0 || length > end - position)
+				throw new IOException("truncated resource");
+			String string = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+			position += (int) length;
+			return string;
+		}
+	}
+}
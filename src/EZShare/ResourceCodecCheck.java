@@ -0,0 +1,149 @@
+/**
+ * The class checks ResourceCodec: resources with missing fields, unicode, tags, an ezserver and sizes
+ * around 0 must decode to the same json as JsonWriter writes for them, and decoding must turn
+ * malformed input into an IOException: every truncation of an encoding, an unknown version, trailing
+ * bytes, a tag count larger than the bytes left, an invalid uri, and random corruption from a fixed
+ * seed, which may also decode to some other resource but must not throw anything else.
+ * Usage: java EZShare.ResourceCodecCheck
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class ResourceCodecCheck {
+	private static final int CORRUPTIONS = 100000;
+
+	private final ResourceCodec codec = new ResourceCodec();
+	private boolean passed = true;
+
+	public static void main(String[] args) {
+		ResourceCodecCheck check = new ResourceCodecCheck();
+		List<Resource> resources = resources();
+		for (Resource resource : resources) {
+			check.roundTrip(resource);
+		}
+		System.out.println(resources.size() + " resources round-tripped");
+		for (Resource resource : resources) {
+			check.truncations(resource);
+		}
+		check.malformed();
+		check.corruptions(resources);
+		System.out.println(check.passed ? "passed" : "FAILED");
+		if (!check.passed)
+			System.exit(1);
+	}
+
+	private static List<Resource> resources() {
+		List<Resource> resources = new ArrayList<>();
+		resources.add(new Resource());
+		Resource full = CatalogSummaryCheck.resource("channel", "tag", "http://example.com/a?b=c#d");
+		full.setName("name");
+		full.setDescription("description");
+		full.setOwner("owner");
+		full.setServerBean(new ServerBean("host.example.com", 3780));
+		full.setSize(1);
+		resources.add(full);
+		Resource unicode = CatalogSummaryCheck.resource("canal \u00e9t\u00e9", "\u6807\u7b7e", "http://example.com/%C3%A9");
+		unicode.setName("\ud83d\ude00 emoji");
+		unicode.setDescription(String.join("", Collections.nCopies(300, "long ")));
+		unicode.setTags(Arrays.asList("a", "", "\u00df", "b"));
+		unicode.setSize(Long.MAX_VALUE);
+		resources.add(unicode);
+		Resource file = CatalogSummaryCheck.resource("", null, "file:///tmp/a%20b.txt");
+		file.setServerBean(new ServerBean("10.0.0.1", 0));
+		file.setSize(-1);
+		resources.add(file);
+		return resources;
+	}
+
+	private void roundTrip(Resource resource) {
+		byte[] bytes = Arrays.copyOf(codec.encode(resource), codec.length());
+		try {
+			String expected = json(resource);
+			String decoded = json(ResourceCodec.decode(bytes, 0, bytes.length));
+			if (!decoded.equals(expected)) {
+				System.out.println("round trip: " + decoded + " where " + expected + " was expected");
+				passed = false;
+			}
+		} catch (IOException e) {
+			System.out.println("round trip: " + e + " for " + json(resource));
+			passed = false;
+		}
+	}
+
+	// an encoding cut short anywhere is refused
+	private void truncations(Resource resource) {
+		byte[] bytes = Arrays.copyOf(codec.encode(resource), codec.length());
+		for (int length = 0; length < bytes.length; length++) {
+			expectIOException("truncated to " + length + " of " + bytes.length + " bytes", bytes, length);
+		}
+	}
+
+	private void malformed() {
+		byte[] bytes = Arrays.copyOf(codec.encode(new Resource()), codec.length());
+		byte[] version = bytes.clone();
+		version[0] = 2;
+		expectIOException("unknown version", version, version.length);
+		byte[] trailing = Arrays.copyOf(bytes, bytes.length + 1);
+		expectIOException("trailing byte", trailing, trailing.length);
+		// version, six empty strings, no port, then a tag count of 2^28 with no tags after it
+		byte[] tags = {1, 0, 0, 0, 0, 0, 0, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1, 0};
+		expectIOException("tag count larger than the input", tags, tags.length);
+		byte[] uri = {1, 0, 0, 4, 'a', ' ', ':', '/', 0, 0, 0, 0, 0, 0};
+		expectIOException("invalid uri", uri, uri.length);
+		byte[] varint = new byte[12];
+		Arrays.fill(varint, (byte) 0xFF);
+		expectIOException("varint longer than 64 bits", varint, varint.length);
+		System.out.println("malformed encodings refused");
+	}
+
+	// random bytes changed in valid encodings either decode or are refused, nothing else
+	private void corruptions(List<Resource> resources) {
+		Random random = new Random(1);
+		int refused = 0;
+		for (int i = 0; i < CORRUPTIONS; i++) {
+			Resource resource = resources.get(random.nextInt(resources.size()));
+			byte[] bytes = Arrays.copyOf(codec.encode(resource), codec.length());
+			for (int changes = 1 + random.nextInt(3); changes > 0; changes--) {
+				bytes[random.nextInt(bytes.length)] = (byte) random.nextInt(256);
+			}
+			try {
+				ResourceCodec.decode(bytes, 0, bytes.length);
+			} catch (IOException e) {
+				refused++;
+			} catch (RuntimeException e) {
+				System.out.println("corruption " + i + ": " + e);
+				passed = false;
+			}
+		}
+		System.out.println(CORRUPTIONS + " corrupted encodings: " + refused + " refused, the others decoded");
+	}
+
+	private void expectIOException(String name, byte[] bytes, int length) {
+		try {
+			ResourceCodec.decode(bytes, 0, length);
+			System.out.println(name + ": decoded");
+			passed = false;
+		} catch (IOException e) {
+			// refused as expected
+		} catch (RuntimeException e) {
+			System.out.println(name + ": " + e);
+			passed = false;
+		}
+	}
+
+	// as the resource is sent in json
+	private static String json(Resource resource) {
+		StringBuilder builder = new StringBuilder();
+		JsonWriter.writeResource(resource, builder);
+		return builder.toString();
+	}
+}
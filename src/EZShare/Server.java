@@ -42,6 +42,20 @@ public class Server {
 		options.addOption("secret", true, "secret");
 		options.addOption("debug", false, "print debug information");
 		options.addOption("sport", true, "secure port");
+		options.addOption("querydeadline", true, "deadline of relayed queries in seconds");
+		options.addOption("relaytimeout", true, "timeout of each relayed server in seconds");
+		options.addOption("deduplicate", false, "drop duplicate results of relayed queries");
+		options.addOption("summaryttl", true, "seconds a catalog summary of another server is used to skip it in relayed queries, 0 (default) to ask every server");
+		options.addOption("replicas", true, "comma separated host:port of the servers keeping the same catalog");
+		options.addOption("syncinterval", true, "seconds between two synchronizations with the replicas");
+		options.addOption("primary", true, "host:port of the server to follow as a read replica");
+		options.addOption("ownership", false, "store and query each channel on its owners on a hash ring of the servers");
+		options.addOption("replicationfactor", true, "owners of each channel in channel ownership mode");
+		options.addOption("remotecache", false, "follow the catalogs of the other servers and answer relayed queries from them");
+		options.addOption("publicstream", false, "stream the catalog, owners masked, to the remote catalog caches of servers with the same secret");
+		options.addOption("replicationstreams", true, "replication streams open at a time");
+		options.addOption("notificationqueue", true, "notifications waiting to be written to each subscriber");
+		options.addOption("slowconsumer", true, "when a subscriber falls behind: dropOldest, coalesce or disconnect (default)");
 		
 		CommandLineParser parser = new DefaultParser();
 		CommandLine cmd = null;
@@ -106,6 +120,107 @@ public class Server {
 			}		 
 		}
 		
+		if (cmd.hasOption("querydeadline")) {
+			try {
+				ServerInfo.queryDeadline = Integer.parseInt(cmd.getOptionValue("querydeadline"));
+			} catch (Exception e) {
+				logger.error("Query deadline should be an integer. Using default query deadline(sec): " + ServerInfo.queryDeadline);
+			}	
+		}
+		
+		if (cmd.hasOption("relaytimeout")) {
+			try {
+				ServerInfo.relayTimeout = Integer.parseInt(cmd.getOptionValue("relaytimeout"));
+			} catch (Exception e) {
+				logger.error("Relay timeout should be an integer. Using default relay timeout(sec): " + ServerInfo.relayTimeout);
+			}	
+		}
+		
+		if (cmd.hasOption("deduplicate")) {
+			ServerInfo.deduplicateResults = true;
+		}
+		
+		if (cmd.hasOption("replicas")) {
+			for (String replica : cmd.getOptionValue("replicas").split(",")) {
+				int colon = replica.lastIndexOf(':');
+				try {
+					ServerInfo.replicas.add(new ServerBean(replica.substring(0, colon).trim(), Integer.parseInt(replica.substring(colon + 1).trim())));
+				} catch (Exception e) {
+					logger.error("Replica should be host:port, ignoring: " + replica);
+				}
+			}
+		}
+		
+		if (cmd.hasOption("primary")) {
+			String primary = cmd.getOptionValue("primary");
+			int colon = primary.lastIndexOf(':');
+			try {
+				ServerInfo.primary = new ServerBean(primary.substring(0, colon).trim(), Integer.parseInt(primary.substring(colon + 1).trim()));
+			} catch (Exception e) {
+				logger.error("Primary should be host:port, not running as a read replica");
+			}
+		}
+		
+		if (cmd.hasOption("ownership")) {
+			ServerInfo.channelOwnership = true;
+		}
+		
+		if (cmd.hasOption("remotecache")) {
+			ServerInfo.remoteCache = true;
+		}
+		
+		if (cmd.hasOption("publicstream")) {
+			ServerInfo.publicStream = true;
+		}
+		
+		if (cmd.hasOption("replicationstreams")) {
+			try {
+				ServerInfo.maxReplicationStreams = Integer.parseInt(cmd.getOptionValue("replicationstreams"));
+			} catch (Exception e) {
+				logger.error("Replication streams should be an integer. Using default replication streams: " + ServerInfo.maxReplicationStreams);
+			}	
+		}
+		
+		if (cmd.hasOption("notificationqueue")) {
+			try {
+				ServerInfo.notificationQueueSize = Integer.parseInt(cmd.getOptionValue("notificationqueue"));
+			} catch (Exception e) {
+				logger.error("Notification queue should be an integer. Using default notification queue: " + ServerInfo.notificationQueueSize);
+			}	
+		}
+		
+		if (cmd.hasOption("slowconsumer")) {
+			String policy = cmd.getOptionValue("slowconsumer");
+			if (policy.equals(NotificationQueue.DROP_OLDEST) || policy.equals(NotificationQueue.COALESCE) || policy.equals(NotificationQueue.DISCONNECT))
+				ServerInfo.slowConsumerPolicy = policy;
+			else
+				logger.error("Slow consumer policy should be dropOldest, coalesce or disconnect. Using default policy: " + ServerInfo.slowConsumerPolicy);
+		}
+		
+		if (cmd.hasOption("replicationfactor")) {
+			try {
+				ServerInfo.replicationFactor = Integer.parseInt(cmd.getOptionValue("replicationfactor"));
+			} catch (Exception e) {
+				logger.error("Replication factor should be an integer. Using default replication factor: " + ServerInfo.replicationFactor);
+			}	
+		}
+		
+		if (cmd.hasOption("syncinterval")) {
+			try {
+				ServerInfo.syncInterval = Integer.parseInt(cmd.getOptionValue("syncinterval"));
+			} catch (Exception e) {
+				logger.error("Sync interval should be an integer. Using default sync interval(sec): " + ServerInfo.syncInterval);
+			}	
+		}
+		
+		if (cmd.hasOption("summaryttl")) {
+			try {
+				ServerInfo.summaryTtl = Integer.parseInt(cmd.getOptionValue("summaryttl"));
+			} catch (Exception e) {
+				logger.error("Summary ttl should be an integer. Using default summary ttl(sec): " + ServerInfo.summaryTtl);
+			}	
+		}
+		
 		InputStream keystoreInput = Thread.currentThread().getContextClassLoader().getResourceAsStream("server.jks");
 		InputStream truststoreInput = Thread.currentThread().getContextClassLoader().getResourceAsStream("trust.jks");
 		try {
@@ -134,5 +249,6 @@ public class Server {
 		SSLContext sslContext = SSLContext.getInstance("SSL");
 		sslContext.init(keyManagers, trustManagers, null);
 		SSLContext.setDefault(sslContext);    
+		SSLConfig.init(sslContext);     // built once, shared by every secure socket
 	}
 }
@@ -1,13 +1,15 @@
 /**
  * The class is to store information of the server. It includes hostname, port number
- * and IP address.
+ * and IP address. The address is resolved lazily through AddressResolver, only when a
+ * connection is opened or a server is checked against the names of this one (Membership.isSelf),
+ * never to print hostname:port or to compare two servers.
  * @author Sheng Wu
  * @version 1.0 29/04/2017
  */
 package EZShare;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.Locale;
 
 public class ServerBean {
 	private String hostname;
@@ -17,16 +19,16 @@ public class ServerBean {
 	public ServerBean(String hostname, int port){
 		this.hostname = hostname;
 		this.port = port;
-		try {
-			this.address = InetAddress.getByName(hostname);
-			 
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		}
 	}
 
+	/**
+	 * The method returns the address of the server, from the resolver's cache unless it was set.
+	 * @return address or null if the hostname can't be resolved
+	 */
 	public InetAddress getAddress() {
-		return address;
+		if (address != null)
+			return address;
+		return AddressResolver.getInstance().resolve(hostname);
 	} 
 	
 	public int getPort() {
@@ -53,9 +55,15 @@ public class ServerBean {
 		return this.hostname + ":" + this.port;
 	}
  
+	// hostnames are not case sensitive; no lookup, so that it is cheap and agrees with hashCode
 	public boolean equals(Object obj) {
 		if (!(obj instanceof ServerBean)) return false;
 		ServerBean serverBean = (ServerBean) obj;
-		return this.address.equals(serverBean.getAddress()) && this.port == serverBean.getPort();
+		return this.port == serverBean.getPort() && this.hostname.equalsIgnoreCase(serverBean.getHostname());
 	}
-}
\ No newline at end of file
+	
+	// addresses can change when they are refreshed, so they are not part of the hash
+	public int hashCode() {
+		return 31 * hostname.toLowerCase(Locale.ROOT).hashCode() + port;
+	}
+}
@@ -6,26 +6,35 @@
  */
 package EZShare;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
-import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException; 
-import org.apache.wink.json4j.JSONObject;
 
 public class ServerCommandProcessor { 
 	private ServerCore core;
 	private static ServerCommandProcessor processor;
 	private List<Subscriber> subscribers;
+	private SubscriptionIndex<Subscriber> subscriptionIndex;
+	private RelaySubscriptions relaySubscriptions;
+	private Map<String, RelayFlight> flights;
+	private static final AtomicLong coalescedQueries = new AtomicLong();
+	private static final AtomicLong prunedRelays = new AtomicLong();
+	private static final AtomicInteger readReplicas = new AtomicInteger();
 	
 	private static Logger logger = Logger.getLogger(ServerCommandProcessor.class);
 	
@@ -35,6 +44,9 @@ public class ServerCommandProcessor {
 	private ServerCommandProcessor() {
 		core = ServerCore.getInstance();
 		subscribers = Collections.synchronizedList(new ArrayList<>());
+		subscriptionIndex = new SubscriptionIndex<>();
+		relaySubscriptions = new RelaySubscriptions();
+		flights = new HashMap<>();
 	}
 	
 	/**
@@ -53,293 +65,537 @@ public class ServerCommandProcessor {
 	}
 	
 	/**
-	 * The method process the command the client sends to a json object.
+	 * The method decodes the command the client sends into a Command object.
 	 * And pass the command to different methods
 	 * according to different commands.
 	 * @param command a json string
 	 * @return messages List<Message> 
 	 */
-	public List<Message> processCommand(String command, boolean secure, DataInputStream inputStream, ProcessorListener messageListener) {
+	public List<Message> processCommand(String command, boolean secure, MessageStream messageStream, ProcessorListener messageListener) {
 		List<Message> messages = new ArrayList<Message>();
 		try {
-			JSONObject jsonObject = new JSONObject(command); 
-			String cmd = jsonObject.getString("command");
+			Command commandObject = Command.parse(command);
+			String cmd = commandObject.getCommand();
+			if (commandObject.getFraming() != null)
+				messageListener.onFramingRequested(commandObject.getFraming(), nullToEmpty(commandObject.getCompression()), nullToEmpty(commandObject.getEncoding()));
+			// servers relaying to us may reuse the connection for their next QUERY, EXCHANGE or SYNC; clients 
+			// may not, each of their commands needs a new connection, which is held to ServerInfo.connectionInterval
+			boolean keepAlive = commandObject.isKeepAlive() && Command.canKeepAlive(cmd) && messageListener.grantKeepAlive();
 			switch (cmd) {
 			case "PUBLISH": 
-				messages.addAll(publish(jsonObject, secure));
+				messages.addAll(publish(commandObject, secure));
 				messageListener.onProcessFinished(messages, true);
 				break;
 			case "REMOVE": 
-				messages.addAll(remove(jsonObject, secure));
+				messages.addAll(remove(commandObject, secure));
 				messageListener.onProcessFinished(messages, true);
 				break;
 			case "SHARE":
-				messages.addAll(share(jsonObject, secure));
+				messages.addAll(share(commandObject, secure));
 				messageListener.onProcessFinished(messages, true);
 				break;
 			case "QUERY":
-				messages.addAll(query(jsonObject, secure));
-				messageListener.onProcessFinished(messages, true);
+				query(commandObject, secure, messageListener, !keepAlive);
 				break;
 			case "FETCH":
-				messages.addAll(fetch(jsonObject, secure));
+				messages.addAll(fetch(commandObject, secure));
 				messageListener.onProcessFinished(messages, true);
 				break;
 			case "EXCHANGE":
-				messages.addAll(exchange(jsonObject, secure));
+				messages.addAll(exchange(commandObject, secure));
+				messageListener.onProcessFinished(messages, !keepAlive);
+				break;
+			case "SYNC":
+				messages.addAll(sync(commandObject));
+				messageListener.onProcessFinished(messages, !keepAlive);
+				break;
+			case "REPLICATE":
+				replicate(commandObject, messageListener);
+				break;
+			case "STATS":
+				messages.add(new Message(ServerStats.toJson().toString()));
 				messageListener.onProcessFinished(messages, true);
 				break;
 			case "SUBSCRIBE":
-				subscribe(jsonObject, inputStream, messageListener, secure);
+				subscribe(commandObject, messageStream, messageListener, secure);
+				break;
 			default:
 				messages.addAll(sendErrorMessage("Invalid Command"));
 				messageListener.onProcessFinished(messages, true);
 			}
 		} catch (JSONException e) { 
-			return sendErrorMessage("missing or incorrect type for command");
-		} finally {
-			return messages;
-		}	
+			// a field of the wrong type, answered as each command answered it before and the connection closed
+			messages.addAll(sendErrorMessage(invalidCommandMessage(Command.peekCommand(command))));
+			messageListener.onProcessFinished(messages, true);
+		}
+		return messages;
+	}
+
+	// the error for a command whose fields Command.parse rejected
+	private static String invalidCommandMessage(String cmd) {
+		if (cmd == null)
+			return "missing or incorrect type for command";
+		switch (cmd) {
+		case "PUBLISH":
+		case "REMOVE":
+		case "FETCH":
+			return "missing resource";
+		case "SHARE":
+			return "missing resource and/or secret";
+		case "QUERY":
+		case "SUBSCRIBE":
+			return "missing resourceTemplate";
+		default:
+			return "invalid command";
+		}
 	}
 
 	/**
- 	 * The method deal with the publish command and sends back the response.
-	 * @param jsonObject
+ 	 * The method deal with the publish command and sends back the response. In channel ownership mode 
+ 	 * the resource is stored by the servers owning its channel, which may not include this one.
+	 * @param command
 	 * @return messages List<Message>
 	 */
-	private List<Message> publish(JSONObject jsonObject, boolean secure) {
-		if (!jsonObject.has("resource")) 
+	private List<Message> publish(Command command, boolean secure) {
+		if (ServerInfo.primary != null)
+			return sendErrorMessage("cannot publish resource");     // read replicas only take changes from the primary
+		if (!command.hasResource() || command.getResource() == null) 
 			return sendErrorMessage("missing resource");
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resource");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		if (!Resource.checkValidity(resourceObject)) 
-			return sendErrorMessage("missing resource");
-		Resource resource = Resource.parseJson(resourceObject);
-		resource.setServerBean(secure ? core.getMySServer() : core.getMyServer());
-		if (resource==null|| resource.getOwner().equals("*"))
+		if (command.isForwarded() && ServerInfo.channelOwnership && !isForwarded(command, secure))
+			return sendErrorMessage("incorrect secret");
+		Resource resource = command.getResource();
+		// a resource forwarded by the server it was published on keeps its ezserver
+		if (!isForwarded(command, secure) || resource.getServerBean() == null)
+			resource.setServerBean(secure ? core.getMySServer() : core.getMyServer());
+		if (resource.getUri() == null || resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resource");
 		if (!resource.getUri().isAbsolute() || resource.getUri().getScheme().equals("file"))
 			return sendErrorMessage("cannot publish resource");
-		List<Resource> resources = core.getResources(); 
-		synchronized(resources) {
-			if (resources.stream().anyMatch(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && !re.getOwner().equals(resource.getOwner())))
-				return sendErrorMessage("cannot share resource");
-			List<Resource> sameResource = resources.stream().filter(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && re.getOwner().equals(resource.getOwner())).collect(Collectors.toList());
-			if (sameResource.size() > 0) {
-				resources.set(resources.indexOf(sameResource.get(0)), resource); 
-				for (Subscriber subscriber : subscribers) { 
-					subscriber.onResourceChanged(resource);
-				}
-			} else { 
-				resources.add(resource);
-				for (Subscriber subscriber : subscribers) {
-					subscriber.onResourceChanged(resource);
-				}
-			}
+		if (!ownsChannels(command, secure))
+			return store(resource);
+		List<Message> local = null;
+		boolean forwarded = false;
+		for (ServerBean owner : core.getRing().owners(resource.getChannel(), ServerInfo.replicationFactor)) {
+			if (isMyServer(owner))
+				local = store(resource);
+			else
+				forwarded |= core.forward(owner, "PUBLISH", resource);
 		}
-		return sendSuccessMessage();
+		if (local != null)
+			return local;
+		return forwarded ? sendSuccessMessage() : sendErrorMessage("cannot publish resource");
 	}
 	
 	/**
-	 * The method deal with the remove command and sends back the response.
-	 * @param jsonObject
+	 * The method deal with the remove command and sends back the response. In channel ownership mode
+	 * the resource is removed from the servers owning its channel too.
+	 * @param command
 	 * @return messages List<Message>
 	 */
-	private List<Message> remove(JSONObject jsonObject, boolean secure) {
-		if (!jsonObject.has("resource"))
-			return sendErrorMessage("missing resource");
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resource");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		if (!Resource.checkValidity(resourceObject))
+	private List<Message> remove(Command command, boolean secure) {
+		if (ServerInfo.primary != null)
+			return sendErrorMessage("cannot remove resource");
+		if (!command.hasResource() || command.getResource() == null)
 			return sendErrorMessage("missing resource");
-		Resource resource = Resource.parseJson(resourceObject);
-		if (resource == null || resource.getOwner().equals("*"))
+		if (command.isForwarded() && ServerInfo.channelOwnership && !isForwarded(command, secure))
+			return sendErrorMessage("incorrect secret");
+		Resource resource = command.getResource();
+		if (resource.getUri() == null || resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resource");
 		if ( !resource.getUri().isAbsolute())
 			return sendErrorMessage("cannot remove resource");
-		List<Resource> resources = core.getResources();
-		synchronized(resources) {
-			List<Resource> targetList = resources.stream().filter(re -> re.getOwner().equals(resource.getOwner()) && re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri())).collect(Collectors.toList());
-			if (targetList.size()==0)
-				return sendErrorMessage("cannot remove resource");
-			resources.remove(targetList.get(0));
-			resources.forEach(re -> logger.debug("Remove" + Resource.toJson(re).toString()));
+		List<Message> local = removeHere(resource);
+		if (!ownsChannels(command, secure))
+			return local;
+		boolean removed = isSuccess(local);
+		for (ServerBean owner : core.getRing().owners(resource.getChannel(), ServerInfo.replicationFactor)) {
+			if (!isMyServer(owner))
+				removed |= core.forward(owner, "REMOVE", resource);
 		}
-		return sendSuccessMessage();
+		return removed ? sendSuccessMessage() : sendErrorMessage("cannot remove resource");
 	}
 
 	/**
-	 * The method deal with the share command and sends back the response.
-	 * @param jsonObject
+	 * The method deal with the share command and sends back the response. Shared files are never forwarded,
+	 * in channel ownership mode too they are only in the catalog of the server they are shared on.
+	 * @param command
 	 * @return messages List<Message>
 	 */
-	private List<Message> share(JSONObject jsonObject, boolean secure) {
-		if (!jsonObject.has("resource")||!jsonObject.has("secret"))
+	private List<Message> share(Command command, boolean secure) {
+		if (ServerInfo.primary != null)
+			return sendErrorMessage("cannot share resource");
+		if (!command.hasResource() || command.getSecret() == null)
 			return sendErrorMessage("missing resource and/or secret");
-		try {
-			if(!jsonObject.getString("secret").equals(ServerInfo.secret))
-				return sendErrorMessage("incorrect secret");
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resource");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		if (!Resource.checkValidity(resourceObject))
+		if (!command.getSecret().equals(ServerInfo.secret))
+			return sendErrorMessage("incorrect secret");
+		if (command.getResource() == null)
 			return sendErrorMessage("missing resource");
-		Resource resource = Resource.parseJson(resourceObject);
+		Resource resource = command.getResource();
 		resource.setServerBean(secure ? core.getMySServer() : core.getMyServer()); 
-		if (resource == null || resource.getOwner().equals("*"))
+		if (resource.getUri() == null || resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resource");
 		if (!resource.getUri().isAbsolute() || !resource.getUri().getScheme().equals("file")||resource.getUri().getAuthority()!=null)
 			return sendErrorMessage("cannot share resource");
 		File file = new File(resource.getUri().getPath());
 		if (!file.exists()||!file.isFile()) 
 			return sendErrorMessage("cannot share resource");
-		List<Resource> resources = core.getResources();
+		return store(resource);
+	}
+
+	// adds or replaces a resource in the catalog of this server, a resource with the same channel and uri can't have another owner
+	private List<Message> store(Resource resource) {
+		List<Resource> resources = core.getResources(); 
+		long sequence;
 		synchronized(resources) {
 			if (resources.stream().anyMatch(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && !re.getOwner().equals(resource.getOwner())))
 				return sendErrorMessage("cannot share resource");
 			List<Resource> sameResource = resources.stream().filter(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && re.getOwner().equals(resource.getOwner())).collect(Collectors.toList());
 			if (sameResource.size() > 0) {
-				resources.set(resources.indexOf(sameResource.get(0)), resource);
-				for (Subscriber subscriber : subscribers) {
-					subscriber.onResourceChanged(resource);
-				}
-			} else {
+				resources.set(resources.indexOf(sameResource.get(0)), resource); 
+				sequence = catalogChanged(sameResource.get(0), resource);
+			} else { 
 				resources.add(resource);
-				for (Subscriber subscriber : subscribers) {
-					subscriber.onResourceChanged(resource);
-				}
+				sequence = catalogChanged(null, resource);
 			}
-		} 
+		}
+		notifySubscribers(resource, sequence);
+		return sendSuccessMessage();
+	}
+
+	private List<Message> removeHere(Resource resource) {
+		List<Resource> resources = core.getResources();
+		synchronized(resources) {
+			List<Resource> targetList = resources.stream().filter(re -> re.getOwner().equals(resource.getOwner()) && re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri())).collect(Collectors.toList());
+			if (targetList.size()==0)
+				return sendErrorMessage("cannot remove resource");
+			resources.remove(targetList.get(0));
+			catalogChanged(targetList.get(0), null);
+			if (logger.isDebugEnabled())
+				resources.forEach(re -> logger.debug("Remove" + JsonWriter.toJson(re)));
+		}
 		return sendSuccessMessage();
 	}
 
+	// channel ownership only covers the insecure server list, and a forwarded change is not forwarded again
+	private static boolean ownsChannels(Command command, boolean secure) {
+		return ServerInfo.channelOwnership && !secure && !isForwarded(command, secure);
+	}
+
+	// a change is only taken as forwarded by the owner of its channel in channel ownership mode, with the secret
+	private static boolean isForwarded(Command command, boolean secure) {
+		return command.isForwarded() && ServerInfo.channelOwnership && !secure && ServerInfo.secret.equals(command.getSecret());
+	}
+
+	private boolean isSharedHere(Resource resource) {
+		if (resource.getServerBean() == null)
+			return false;
+		String ezserver = resource.getServerBean().toString();
+		return ezserver.equals(core.getMyServer().toString()) || ezserver.equals(core.getMySServer().toString());
+	}
+
+	// under any of its names, every server must find itself among the owners of a channel
+	private boolean isMyServer(ServerBean serverBean) {
+		return core.getMembership(false).isSelf(serverBean);
+	}
+
+	private static boolean isSuccess(List<Message> messages) {
+		return messages.size() > 0 && JsonWriter.SUCCESS.equals(messages.get(0).getMessage());
+	}
+
+	// the subscriptions are matched outside the resources lock, a publish doesn't wait for them
+	private void notifySubscribers(Resource resource, long sequence) {
+		for (Subscriber subscriber : subscriptionIndex.candidates(resource)) {
+			subscriber.onResourceChanged(resource, sequence);
+		}
+	}
+
+	// keeps the catalog summary and the replication tree in step with the resources, under the resources lock,
+	// and returns the sequence number of the change
+	private long catalogChanged(Resource previous, Resource current) {
+		long sequence = core.getMutationLog().append(current != null ? current : previous, current == null);
+		if (previous != null)
+			core.getSummary().remove(previous);
+		if (current != null)
+			core.getSummary().add(current);
+		// shared files stay on the disk of this server, only published resources are replicated
+		Resource changed = current != null ? current : previous;
+		if ("file".equals(changed.getUri().getScheme()))
+			return sequence;
+		if (current != null)
+			core.getCatalogTree().put(current, System.currentTimeMillis());
+		else
+			core.getCatalogTree().delete(previous, System.currentTimeMillis());
+		return sequence;
+	}
+
 	/**
 	 * The method deal with the query command (if relay == true, the server will propagate the command to other servers and 
-	 * set relay field to false, owner and channel to "") then sends back the response.
-	 * @param jsonObject
-	 * @return messages List<Message>
+	 * set relay field to false, owner and channel to "") then sends back the response. Local results are sent first, 
+	 * then the results of the other servers as they arrive. The other servers are asked at the same time, those that 
+	 * don't answer before the query deadline are listed in the resultSize line.
+	 * @param command
+	 * @param processorListener
+	 * @param closeConnection whether to close the connection after the reply
 	 */
-	private List<Message> query(JSONObject jsonObject, boolean secure){
-		List<Message> messages = new ArrayList<>();
-		if (!jsonObject.has("resourceTemplate")||!jsonObject.has("relay"))
-			return sendErrorMessage("missing resourceTemplate");
-		boolean relay = true;
-		try {
-			relay = jsonObject.getBoolean("relay");
-		} catch (JSONException e1) { 
-			e1.printStackTrace();
-		} 
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resourceTemplate");
-		} catch (JSONException e1) { 
-			e1.printStackTrace();
+	private void query(Command command, boolean secure, ProcessorListener processorListener, boolean closeConnection){
+		if (!command.hasResourceTemplate() || command.getRelay() == null || command.getResourceTemplate() == null) {
+			processorListener.onProcessFinished(sendErrorMessage("missing resourceTemplate"), closeConnection);
+			return;
 		}
-		if (!Resource.checkValidity(resourceObject)) 
-			return sendErrorMessage("missing resourceTemplate");
-		Resource resource = Resource.parseJson(resourceObject);
-		if (resource==null|| resource.getOwner().equals("*"))
-			return sendErrorMessage("invalid resourceTemplate");
+		// a read replica answers from its copy of the catalog of the primary
+		boolean relay = command.getRelay() && ServerInfo.primary == null;
+		Resource resource = command.getResourceTemplate();
+		if (resource.getUri() == null || resource.getOwner().equals("*")) {
+			processorListener.onProcessFinished(sendErrorMessage("invalid resourceTemplate"), closeConnection);
+			return;
+		}
+		List<Message> messages = new ArrayList<>();
 		messages.addAll(sendSuccessMessage());
 		List<Resource> resources = core.getResources();
 		List<Resource> candidates = new ArrayList<>();
 		synchronized(resources) {
 			for (Resource re : resources){
-				List<String> queryTags = new ArrayList<>();
-				for (String tag : re.getTags()) {
-					tag = tag.toLowerCase();
-					queryTags.add(tag);
-				}
-				if (resource.getChannel().equals(re.getChannel()) && 
-						((resource.getOwner().equals("") || resource.getOwner().equals(re.getOwner()))) &&
-						((resource.getTags().size() == 0 || resource.getTags().stream().map(s -> s.toLowerCase()).allMatch(tag -> queryTags.contains(tag)))) &&
-						((resource.getUri().toString().equals("") || resource.getUri().equals(re.getUri()))) &&
-						( (resource.getName().equals("") && resource.getDescription().equals("")) ||
-								(!resource.getName().equals("") && re.getName().contains(resource.getName()) ) ||
-								(!resource.getDescription().equals("") && re.getDescription().contains(resource.getDescription())) )) {
-					try {
-						Resource candidateResource = re.clone();
-						if (!candidateResource.getOwner().equals(""))
-							candidateResource.setOwner("*");
-						//candidateResource.setServerBean(secure ? core.getMySServer() : core.getMyServer()); 
+				if (matches(resource, re)) {
+					Resource candidateResource = maskOwner(re);
+					//candidateResource.setServerBean(secure ? core.getMySServer() : core.getMyServer()); 
+					if (candidateResource != null)
 						candidates.add(candidateResource);
-					} catch (CloneNotSupportedException e) {
-						e.printStackTrace();
-					}
 				}
 			}	
 		}
-		if(relay) {
-			List<ServerBean> serverBeans = secure ? core.getServerSList() : core.getServerList();
-			for(ServerBean serverBean : serverBeans) {
-				if (serverBean.equals(secure ? core.getMySServer() : core.getMyServer())) continue; 
-				try {
-					jsonObject.put("relay", false);
-					JSONObject templateObject = (JSONObject)jsonObject.get("resourceTemplate");
-					templateObject.put("owner", "");
-					templateObject.put("channel", "");
-				} catch (JSONException e1) { 
-					e1.printStackTrace();
-				} 
-				List<Message> results = core.getServerConnection().establishConnection(serverBean, new Message(MessageType.STRING, jsonObject.toString(), null, null), secure);
-				if (results == null || results.size() == 0) continue;
-				results.forEach(result -> {
-					JSONObject resultObject = null;
-					try {
-						resultObject = new JSONObject(result.getMessage());
-					} catch (JSONException e) { 
-						e.printStackTrace();
+		// the owners of a channel hold the same copies, each is sent once
+		Set<String> seen = ServerInfo.deduplicateResults || (relay && ServerInfo.channelOwnership && !secure) ? new HashSet<>() : null;
+		int resultSize = 0;
+		for (Resource candidate : candidates) {
+			if (seen == null || seen.add(resultKey(candidate))) {
+				messages.add(new Message(candidate));
+				resultSize++;
+			}
+		}
+		if (!relay) {
+			messages.add(new Message(MessageType.STRING, resultSize(resultSize, new ArrayList<>(), new ArrayList<>()),null,null));
+			processorListener.onProcessFinished(messages, closeConnection);
+			return;
+		}
+		// the local results don't wait for the other servers
+		if (!processorListener.onProcessFinished(messages, false))
+			return;
+		// in channel ownership mode only the owners of the channel are asked, and they keep the channel.
+		// servers whose catalog summary has nothing the query could match are not asked
+		boolean owned = ServerInfo.channelOwnership && !secure;
+		Resource relayTemplate = relayedTemplate(resource, owned);
+		String template = JsonWriter.toJson(relayTemplate);
+		List<ServerBean> serverBeans = new ArrayList<>();
+		List<ServerBean> pruned = new ArrayList<>();
+		List<ServerBean> targets = owned ? core.getRing().owners(resource.getChannel(), ServerInfo.replicationFactor) : core.getMembership(secure).list();
+		for (ServerBean serverBean : targets) {
+			if (core.getMembership(secure).isSelf(serverBean))
+				continue;
+			if (core.mightMatch(serverBean, secure, relayTemplate))
+				serverBeans.add(serverBean);
+			else
+				pruned.add(serverBean);
+		}
+		prunedRelays.addAndGet(pruned.size());
+		// servers whose catalog is cached here and fresh are answered from the cache, not asked
+		if (ServerInfo.remoteCache && !secure) {
+			messages = new ArrayList<>();
+			Iterator<ServerBean> iterator = serverBeans.iterator();
+			while (iterator.hasNext()) {
+				List<Resource> cached = core.getRemoteCache().query(iterator.next(), relayTemplate);
+				if (cached == null)
+					continue;
+				iterator.remove();
+				for (Resource externalResource : cached) {
+					if (seen == null || seen.add(resultKey(externalResource))) {
+						messages.add(new Message(externalResource));
+						resultSize++;
 					}
-					if (Resource.checkValidity(resultObject)) {
-						Resource externalResource = Resource.parseJson(resultObject);
-						candidates.add(externalResource);
+				}
+			}
+			if (messages.size() > 0 && !processorListener.onProcessFinished(messages, false))
+				return;
+		}
+		// identical queries relayed at the same time share one flight, the first one starts it
+		String flightKey = (secure ? "secure " : "") + template;
+		RelayFlight flight;
+		RelayFlight.Cursor cursor;
+		boolean leader = false;
+		synchronized (flights) {
+			flight = flights.get(flightKey);
+			cursor = flight == null ? null : flight.join();     // null once it dropped results or was abandoned
+			if (cursor == null) {
+				flight = new RelayFlight(System.currentTimeMillis() + ServerInfo.queryDeadline * 1000L);
+				flights.put(flightKey, flight);
+				leader = true;
+				cursor = flight.join();
+			}
+		}
+		if (leader) {
+			RelayFlight newFlight = flight;
+			StringBuilder request = new StringBuilder(template.length() + 96);
+			request.append("{\"command\":\"QUERY\",\"relay\":false,\"resourceTemplate\":").append(template).append('}');
+			core.getServerConnection().relayAsync(serverBeans, new Message(request.toString()), secure, (result, stream) -> {
+				Resource externalResource = toResource(result);
+				try {
+					return externalResource != null && !newFlight.add(externalResource);
+				} catch (InterruptedException e) {
+					return true;
+				}
+			}).whenComplete((unanswered, e) -> {
+				synchronized (flights) {
+					flights.remove(flightKey, newFlight);
+				}
+				newFlight.finish(unanswered == null ? serverBeans : unanswered);
+			});
+		} else {
+			coalescedQueries.incrementAndGet();
+		}
+		try {
+			List<Resource> batch;
+			// the flight finishes by the deadline, the margin covers the relay threads giving up
+			while ((batch = flight.next(cursor, flight.getDeadline() + ServerInfo.relayTimeout * 1000L)) != null) {
+				messages = new ArrayList<>();
+				for (Resource externalResource : batch) {
+					if (seen == null || seen.add(resultKey(externalResource))) {
+						messages.add(new Message(externalResource));
+						resultSize++;
 					}
-				});
+				}
+				if (messages.size() > 0 && !processorListener.onProcessFinished(messages, false))
+					return;
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			flight.leave(cursor);
+		}
+		List<ServerBean> unanswered = flight.isFinished() ? flight.getUnanswered() : serverBeans;
+		processorListener.onProcessFinished(Message.makeAMessage(resultSize(resultSize, unanswered, pruned)), closeConnection);
+	}
+
+	public static long getCoalescedQueries() {
+		return coalescedQueries.get();
+	}
+
+
+	public static long getPrunedRelays() {
+		return prunedRelays.get();
+	}
+
+	public static int getReadReplicas() {
+		return readReplicas.get();
+	}
+
+	// a relayed line as a resource, null for the response and resultSize lines
+	private static Resource toResource(Message result) {
+		if (result.getType() == MessageType.RESOURCE)
+			return result.getResource();     // binary, no json to parse
+		try {
+			return Resource.parseJson(new JsonReader(result.getMessage()));
+		} catch (JSONException e) { 
+			e.printStackTrace();
+			return null;
 		}
-		candidates.forEach(candidate -> {
-			messages.add(new Message(MessageType.STRING, Resource.toJson(candidate).toString(),null,null));
-		}); 
-		messages.add(new Message(MessageType.STRING, "{\"resultSize\":" + candidates.size() + "}",null,null));
-		return messages;
 	}
 
 	/**
-	 * The method deal with the fetch command and sends back the response and file if existed.
-	 * @param jsonObject
-	 * @return messages List<Message>
+	 * The method tells whether a resource matches a query template: the same channel, any owner or the
+	 * same one, every tag of the template, any uri or the same one, and a name or description containing
+	 * those of the template if it has any. Tags are compared ignoring case.
+	 * @param template
+	 * @param resource
+	 * @return true if the resource is a result of the query
 	 */
-	private List<Message> fetch(JSONObject jsonObject, boolean secure){
-		List<Message> messages = new ArrayList<>();
-		if (!jsonObject.has("resourceTemplate")) 
-			return sendErrorMessage("missing resourceTemplate");
-		JSONObject resourceObject = null;
+	static boolean matches(Resource template, Resource resource) {
+		List<String> queryTags = new ArrayList<>();
+		for (String tag : resource.getTags()) {
+			queryTags.add(tag.toLowerCase());
+		}
+		return template.getChannel().equals(resource.getChannel()) && 
+				((template.getOwner().equals("") || template.getOwner().equals(resource.getOwner()))) &&
+				((template.getTags().size() == 0 || template.getTags().stream().map(s -> s.toLowerCase()).allMatch(tag -> queryTags.contains(tag)))) &&
+				((template.getUri().toString().equals("") || template.getUri().equals(resource.getUri()))) &&
+				( (template.getName().equals("") && template.getDescription().equals("")) ||
+						(!template.getName().equals("") && resource.getName().contains(template.getName()) ) ||
+						(!template.getDescription().equals("") && resource.getDescription().contains(template.getDescription())) );
+	}
+
+	/**
+	 * @param resource
+	 * @return a copy of the resource with its owner, if any, shown as "*"
+	 */
+	static Resource maskOwner(Resource resource) {
 		try {
-			resourceObject = jsonObject.getJSONObject("resourceTemplate");
-		} catch (JSONException e) { 
+			Resource masked = resource.clone();
+			if (!masked.getOwner().equals(""))
+				masked.setOwner("*");
+			return masked;
+		} catch (CloneNotSupportedException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// results are the same if they have the same channel, uri and server
+	private static String resultKey(Resource resource) {
+		return resource.getChannel() + "\0" + resource.getUri() + "\0" + resource.getServerBean();
+	}
+
+	// the servers that did not answer a relayed query in time, and those not asked because of their
+	// catalog summary, are listed after the result size
+	private static String resultSize(int size, List<ServerBean> unanswered, List<ServerBean> pruned) {
+		StringBuilder builder = new StringBuilder("{\"resultSize\":").append(size);
+		writeServers("unanswered", unanswered, builder);
+		writeServers("pruned", pruned, builder);
+		return builder.append('}').toString();
+	}
+
+	private static void writeServers(String name, List<ServerBean> servers, StringBuilder builder) {
+		if (servers.size() == 0)
+			return;
+		builder.append(",\"").append(name).append("\":[");
+		for (int i = 0; i < servers.size(); i++) {
+			if (i > 0) builder.append(',');
+			JsonWriter.quote(servers.get(i).toString(), builder);
+		}
+		builder.append(']');
+	}
+
+	// the template sent to the other servers: any owner and channel (unless the channel chose them), tags 
+	// in lower case and sorted, so that queries that match the same resources are relayed, and coalesced, as one
+	private static Resource relayedTemplate(Resource template, boolean keepChannel) {
+		Resource relayTemplate = null;
+		try {
+			relayTemplate = template.clone();
+		} catch (CloneNotSupportedException e) {
 			e.printStackTrace();
 		}
-		if (!Resource.checkValidity(resourceObject)) 
+		relayTemplate.setOwner("");
+		if (!keepChannel)
+			relayTemplate.setChannel("");
+		relayTemplate.setTags(relayTemplate.getTags().stream().map(tag -> tag.toLowerCase()).distinct().sorted().collect(Collectors.toList()));
+		return relayTemplate;
+	}
+
+	/**
+	 * The method deal with the fetch command and sends back the response and file if existed.
+	 * @param command
+	 * @return messages List<Message>
+	 */
+	private List<Message> fetch(Command command, boolean secure){
+		List<Message> messages = new ArrayList<>();
+		if (!command.hasResourceTemplate() || command.getResourceTemplate() == null) 
 			return sendErrorMessage("missing resourceTemplate");
-		Resource resource=Resource.parseJson(resourceObject);
-		if (resource == null || !resource.getUri().isAbsolute() || !resource.getUri().getScheme().equals("file") || resource.getUri().getAuthority() != null || resource.getOwner().equals("*"))
+		Resource resource = command.getResourceTemplate();
+		if (resource.getUri() == null || !resource.getUri().isAbsolute() || !resource.getUri().getScheme().equals("file") || resource.getUri().getAuthority() != null || resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resourceTemplate");
 		List<Resource> resources = core.getResources();
-		List<Resource> targetList = resources.stream().filter(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri())).collect(Collectors.toList());
+		// only files shared on this server are served
+		List<Resource> targetList;
+		synchronized(resources) {
+			targetList = resources.stream().filter(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && isSharedHere(re)).collect(Collectors.toList());
+		}
 		if (targetList.size() == 0)
 			return sendErrorMessage("uri or channel doesn't correspond");
 		File file = new File(resource.getUri().getPath());
@@ -348,9 +604,8 @@ public class ServerCommandProcessor {
 		resource.setOwner("*");
 		resource.setSize(file.length());
 		resource.setServerBean(core.getMyServer());
-		resourceObject = Resource.toJson(resource);
 		messages.addAll(sendSuccessMessage());
-		messages.add(new Message(MessageType.STRING,Resource.toJson(resource).toString(),null,null));
+		messages.add(new Message(MessageType.STRING,JsonWriter.toJson(resource),null,null));
 		messages.add(new Message(MessageType.FILE,null,null,file));
 		messages.add(new Message(MessageType.STRING,"{\"resultSize\":1}",null,null));
 		return messages;
@@ -358,110 +613,366 @@ public class ServerCommandProcessor {
 
 	/**
 	 * The method deal with the exchange command and sends back the response.
-	 * @param jsonObject
+	 * A server sending its bucket digests gets back our entries in the buckets that differ,
+	 * and the list of those buckets so that it can send its own entries in them, along with our
+	 * catalog summary if it changed since the other server last got it.
+	 * @param command
 	 * @return messages List<Message>
 	 */
-	private List<Message> exchange(JSONObject jsonObject, boolean secure) {
-		if (!jsonObject.has("serverList"))
+	private List<Message> exchange(Command command, boolean secure) {
+		if (!command.hasServerList() || !command.isServerListValid())
 			return sendErrorMessage("missing or invalid server list");
-		JSONArray serverArray = null;
-		try {
-			serverArray = jsonObject.getJSONArray("serverList");
-		} catch (JSONException e) { 
-			e.printStackTrace();
+		List<ServerBean> serverList = command.getServerList();
+		for (int i = 0; i < serverList.size(); i++) {
+			addServer(serverList.get(i), command.getServerVersions().get(i), secure);
 		}
-		for (int i = 0; i < serverArray.length(); i++) {
-			JSONObject serverObject = null;
-			try {
-				serverObject = serverArray.getJSONObject(i);
-			} catch (JSONException e) { 
-				e.printStackTrace();
-			}
-			if (!serverObject.has("hostname")||!serverObject.has("port")) continue;
-			String hostname = "";
-			int port = 3000;
-			
-			try {
-				hostname = serverObject.getString("hostname");
-				port = serverObject.getInt("port");
-			} catch (JSONException e) {
-				return sendErrorMessage("missing or invalid server list");
+		if (command.getBuckets() == null)
+			return sendSuccessMessage();
+		Membership membership = core.getMembership(secure);
+		CatalogSummary summary = core.getSummary();
+		List<Integer> need = membership.differingBuckets(command.getBuckets());
+		StringBuilder builder = new StringBuilder("{\"response\":\"success\",\"serverList\":");
+		membership.writeEntries(need, builder);
+		builder.append(",\"need\":[");
+		for (int i = 0; i < need.size(); i++) {
+			if (i > 0) builder.append(',');
+			builder.append(need.get(i));
+		}
+		builder.append(']');
+		// the catalog summary goes along when the other server doesn't have this version yet
+		long version = summary.getVersion();
+		if (command.getKnownSummary() != null && command.getKnownSummary() != version) {
+			builder.append(",\"summaryVersion\":").append(version).append(",\"summary\":\"").append(summary.toBase64()).append('"');
+		}
+		builder.append('}');
+		List<Message> messages = new ArrayList<>();
+		messages.add(new Message(MessageType.STRING, builder.toString(), null, null));
+		return messages;
+	}
+
+	/**
+	 * The method deal with the sync command of a replica. With a level it sends back the hashes of 
+	 * the given nodes of the catalog tree; with leaves it applies the entries sent that are newer than 
+	 * ours and sends back our entries of those leaves.
+	 * @param command
+	 * @return messages List<Message>
+	 */
+	private List<Message> sync(Command command) {
+		if (command.getSecret() == null)
+			return sendErrorMessage("missing secret");
+		if (!command.getSecret().equals(ServerInfo.secret))
+			return sendErrorMessage("incorrect secret");
+		CatalogTree tree = core.getCatalogTree();
+		StringBuilder builder = new StringBuilder("{\"response\":\"success\",");
+		if (command.getLevel() != null && command.getNodes() != null) {
+			if (command.getLevel() < 0 || command.getLevel() > tree.getDepth())
+				return sendErrorMessage("invalid level");
+			List<String> hashes = tree.getHashes(command.getLevel(), command.getNodes());
+			builder.append("\"hashes\":[");
+			for (int i = 0; i < hashes.size(); i++) {
+				if (i > 0) builder.append(',');
+				JsonWriter.quote(hashes.get(i), builder);
 			}
-			 
-			ServerBean serverBean = new ServerBean(hostname, port); 
-			
-			if(secure) { 
-				if(!core.getServerSList().contains(serverBean) && !serverBean.equals(core.getMySServer())) {
-					synchronized(core.getServerSList()) {
-						core.getServerSList().add(serverBean);
-						if(!serverBean.equals(secure ? core.getMySServer() : core.getMyServer())) {
-							for(Subscriber subscirber : subscribers) {
-								subscirber.onSecureServerChanged(serverBean);
-							}
-						}
-					}
-				}
-			} else { 
-				if (!core.getServerList().contains(serverBean) && !serverBean.equals(core.getMyServer())) {
-					synchronized(core.getServerList()) {
-						core.getServerList().add(serverBean);
-						if(!serverBean.equals(secure ? core.getMySServer() : core.getMyServer())) {
-							for(Subscriber subscirber : subscribers) {
-								subscirber.onNormalServerChanged(serverBean);
-							}
-						}
-					}
+			builder.append(']');
+		} else if (command.getLeaves() != null) {
+			if (command.getEntries() != null) {
+				for (CatalogTree.Entry entry : command.getEntries()) {
+					applyReplicated(entry);
 				}
 			}
+			builder.append("\"entries\":");
+			CatalogTree.writeEntries(tree.getEntries(command.getLeaves()), builder);
+		} else {
+			return sendErrorMessage("missing level or leaves");
 		}
-		return sendSuccessMessage();
+		List<Message> messages = new ArrayList<>();
+		messages.add(new Message(MessageType.STRING, builder.append('}').toString(), null, null));
+		return messages;
 	}
 
-	private void subscribe(JSONObject jsonObject, DataInputStream inputStream, ProcessorListener processorListener, boolean secure) { 
-		if(!jsonObject.containsKey("resourceTemplate") || !jsonObject.containsKey("relay") || !jsonObject.containsKey("id")) {
-			processorListener.onProcessFinished(sendErrorMessage("missing resourceTemplate"), true);
+	/**
+	 * The method applies a resource or a removal received from a replica if it is newer than what we have.
+	 * A resource keeps the ezserver of the server it was published on.
+	 * @param entry
+	 * @return true if it was applied
+	 */
+	public boolean applyReplicated(CatalogTree.Entry entry) {
+		Resource resource = entry.getResource();
+		if ("file".equals(resource.getUri().getScheme()))
+			return false;
+		List<Resource> resources = core.getResources();
+		long sequence;
+		synchronized(resources) {
+			if (!core.getCatalogTree().isNewer(entry))
+				return false;
+			List<Resource> sameResource = resources.stream().filter(re -> re.getOwner().equals(resource.getOwner()) && re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri())).collect(Collectors.toList());
+			if (sameResource.size() > 0) {
+				resources.remove(sameResource.get(0));
+				core.getSummary().remove(sameResource.get(0));
+			}
+			sequence = core.getMutationLog().append(resource, entry.isDeleted());
+			if (entry.isDeleted()) {
+				core.getCatalogTree().delete(resource, entry.getModified());
+			} else {
+				resources.add(resource);
+				core.getSummary().add(resource);
+				core.getCatalogTree().put(resource, entry.getModified());
+			}
+		}
+		if (!entry.isDeleted())
+			notifySubscribers(resource, sequence);
+		return true;
+	}
+
+	/**
+	 * The method deal with the replicate command of a read replica. The replica gets a snapshot of the 
+	 * catalog if the changes after the last one it applied are no longer kept, then every change as it 
+	 * happens, and a heartbeat with the last sequence number every ServerInfo.replicationHeartbeat when 
+	 * nothing changes. It returns when the replica goes away. With ServerInfo.publicStream set, a request 
+	 * with "public":true gets the same stream with the owners masked, for the remote catalog caches of the 
+	 * other servers; it needs the secret too. At most ServerInfo.maxReplicationStreams streams are open at a time.
+	 * @param command
+	 * @param processorListener
+	 */
+	private void replicate(Command command, ProcessorListener processorListener) {
+		// the public stream, like the results of QUERY, shows no owner
+		boolean masked = command.isPublic();
+		if (masked && !ServerInfo.publicStream) {
+			processorListener.onProcessFinished(sendErrorMessage("no public stream"), true);
+			return;
+		}
+		if (command.getSecret() == null || !command.getSecret().equals(ServerInfo.secret)) {
+			processorListener.onProcessFinished(sendErrorMessage("incorrect secret"), true);
+			return;
+		}
+		if (command.getFromSequence() != null && command.getFromSequence() < 0) {
+			processorListener.onProcessFinished(sendErrorMessage("invalid fromSequence"), true);
+			return;
+		}
+		// each stream holds a thread for as long as it is followed
+		if (readReplicas.incrementAndGet() > ServerInfo.maxReplicationStreams) {
+			readReplicas.decrementAndGet();
+			processorListener.onProcessFinished(sendErrorMessage("too many streams"), true);
 			return;
 		}
-		boolean relay = true;
-		String id = null;
 		try {
-			relay = (boolean) jsonObject.get("relay");
-			id = (String) jsonObject.get("id");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		} 
-		JSONObject resourceObject = null;
+			stream(command, masked, processorListener);
+		} finally {
+			readReplicas.decrementAndGet();
+		}
+	}
+
+	// sends the snapshot if needed, then the changes and the heartbeats until the follower goes away
+	private void stream(Command command, boolean masked, ProcessorListener processorListener) {
+		MutationLog log = core.getMutationLog();
+		long after = command.getFromSequence() == null ? -1 : command.getFromSequence();
+		List<Message> messages = new ArrayList<>();
+		if (command.getEpoch() == null || command.getEpoch() != log.getEpoch() || !log.contains(after)) {
+			List<Resource> resources = core.getResources();
+			List<Resource> snapshot;
+			synchronized(resources) {
+				snapshot = new ArrayList<>(resources);
+				after = log.getSequence();
+			}
+			messages.add(new Message("{\"response\":\"success\",\"epoch\":" + log.getEpoch() + ",\"snapshot\":true,\"sequence\":" + after + "}"));
+			for (Resource resource : snapshot) {
+				messages.add(new Message(JsonWriter.toJson(masked ? maskOwner(resource) : resource)));
+			}
+			messages.add(new Message("{\"snapshotEnd\":true,\"sequence\":" + after + "}"));
+		} else {
+			messages.add(new Message("{\"response\":\"success\",\"epoch\":" + log.getEpoch() + ",\"snapshot\":false,\"sequence\":" + after + "}"));
+		}
 		try {
-			resourceObject = jsonObject.getJSONObject("resourceTemplate");
-		} catch (JSONException e1) { 
-			e1.printStackTrace();
+			while (processorListener.onProcessFinished(messages, false)) {
+				List<MutationLog.Mutation> mutations = log.since(after, ServerInfo.replicationHeartbeat * 1000L);
+				if (mutations == null) {
+					// too far behind, it reconnects and gets a snapshot
+					processorListener.onProcessFinished(sendErrorMessage("replica too far behind"), true);
+					return;
+				}
+				messages = new ArrayList<>();
+				for (MutationLog.Mutation mutation : mutations) {
+					messages.add(new Message(mutation.toJson(masked)));
+					after = mutation.getSequence();
+				}
+				if (mutations.isEmpty())
+					messages.add(new Message("{\"sequence\":" + log.getSequence() + ",\"time\":" + System.currentTimeMillis() + "}"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		if(!Resource.checkValidity(resourceObject)) {
-			processorListener.onProcessFinished(sendErrorMessage("invalid resourceTemplate"), true);
+	}
+
+	/**
+	 * The method applies a change streamed by the primary of this read replica.
+	 * @param resource
+	 * @param deleted true for a removal
+	 */
+	public void applyMutation(Resource resource, boolean deleted) {
+		long sequence = applyHere(resource, deleted);
+		if (sequence > 0)
+			notifySubscribers(resource, sequence);
+	}
+
+	// applies a change to the catalog, returns its sequence number if the subscribers should hear about it, 0 if not
+	private long applyHere(Resource resource, boolean deleted) {
+		List<Resource> resources = core.getResources();
+		synchronized(resources) {
+			int index = indexOf(resources, resource);
+			Resource previous = index < 0 ? null : resources.get(index);
+			if (deleted) {
+				if (previous != null) {
+					resources.remove(index);
+					catalogChanged(previous, null);
+				}
+				return 0;
+			}
+			if (previous != null)
+				resources.set(index, resource);
+			else
+				resources.add(resource);
+			return catalogChanged(previous, resource);
+		}
+	}
+
+	/**
+	 * The method replaces the catalog of this read replica with a snapshot of the primary. Only the 
+	 * resources that changed are applied, so the subscribers only hear about those.
+	 * @param snapshot
+	 */
+	public void applySnapshot(List<Resource> snapshot) {
+		Map<String, Resource> latest = new HashMap<>();
+		for (Resource resource : snapshot) {
+			latest.put(resourceKey(resource), resource);
+		}
+		List<Resource> resources = core.getResources();
+		List<Resource> changed = new ArrayList<>();
+		List<Long> sequences = new ArrayList<>();
+		synchronized(resources) {
+			for (Resource resource : new ArrayList<>(resources)) {
+				if (!latest.containsKey(resourceKey(resource)))
+					applyHere(resource, true);
+			}
+			Map<String, Resource> current = new HashMap<>();
+			for (Resource resource : resources) {
+				current.put(resourceKey(resource), resource);
+			}
+			for (Resource resource : snapshot) {
+				Resource previous = current.get(resourceKey(resource));
+				if (previous == null || !JsonWriter.toJson(previous).equals(JsonWriter.toJson(resource))) {
+					sequences.add(applyHere(resource, false));
+					changed.add(resource);
+				}
+			}
+		}
+		for (int i = 0; i < changed.size(); i++) {
+			notifySubscribers(changed.get(i), sequences.get(i));
+		}
+	}
+
+	// resources are the same if they have the same owner, channel and uri
+	private static String resourceKey(Resource resource) {
+		return resource.getOwner() + "\0" + resource.getChannel() + "\0" + resource.getUri();
+	}
+
+	private static int indexOf(List<Resource> resources, Resource resource) {
+		for (int i = 0; i < resources.size(); i++) {
+			Resource re = resources.get(i);
+			if (re.getOwner().equals(resource.getOwner()) && re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the subscriptions relayed to the other servers, shared by the subscribers with the same template
+	 */
+	public RelaySubscriptions getRelaySubscriptions() {
+		return relaySubscriptions;
+	}
+
+	/**
+	 * @return a copy of the subscriptions open on this server
+	 */
+	public List<Subscriber> getSubscribers() {
+		synchronized (subscribers) {
+			return new ArrayList<>(subscribers);
+		}
+	}
+
+	/**
+	 * The method adds a server learnt through an exchange and tells the subscribers about it.
+	 * @param serverBean
+	 * @param version the version sent with it, 0 if none
+	 * @param secure
+	 */
+	public void addServer(ServerBean serverBean, long version, boolean secure) {
+		if (!core.getMembership(secure).merge(serverBean, version))
+			return;
+		synchronized (subscribers) {
+			for (Subscriber subscriber : subscribers) {
+				if (secure)
+					subscriber.onSecureServerChanged(serverBean);
+				else
+					subscriber.onNormalServerChanged(serverBean);
+			}
+		}
+	}
+
+	private void subscribe(Command command, MessageStream messageStream, ProcessorListener processorListener, boolean secure) { 
+		if(!command.hasResourceTemplate() || command.getRelay() == null || command.getId() == null) {
+			processorListener.onProcessFinished(sendErrorMessage("missing resourceTemplate"), true);
 			return;
 		}
-		Resource templateResource = Resource.parseJson(resourceObject); 
+		boolean relay = command.getRelay();
+		String id = command.getId();
+		Resource templateResource = command.getResourceTemplate(); 
 		
-		if(templateResource == null || templateResource.getOwner().equals("*")) {
+		if(templateResource == null || templateResource.getUri() == null || templateResource.getOwner().equals("*")) {
 			processorListener.onProcessFinished(sendErrorMessage("invalid resourceTemplate"), true);
 			return;
 		}  
 		
-		List<Message> submessage = Message.makeAMessage("{\"response\":\"success\",\"id\":\"" + id + "\"}");
-		processorListener.onProcessFinished(submessage, false);	
+		if (command.getFromSequence() != null && command.getFromSequence() < 0) {
+			processorListener.onProcessFinished(sendErrorMessage("invalid fromSequence"), true);
+			return;
+		}
 		
-		Subscriber subscriber = new Subscriber(processorListener, id, templateResource, inputStream, relay, secure);
+		// with a fromSequence the subscription is resumable: notifications carry their sequence number, and
+		// with the epoch of this run of the server too it is resumed, the changes it missed are replayed first
+		boolean resumable = command.getFromSequence() != null;
+		boolean resuming = resumable && command.getEpoch() != null;
+		Subscriber subscriber = new Subscriber(processorListener, id, templateResource, messageStream, relay, secure, resumable);
+		if (command.getBatchLatency() != null && command.getBatchLatency() > 0) {
+			int batchSize = command.getBatchSize() == null || command.getBatchSize() <= 0 ? ServerInfo.maxBatchSize : Math.min(command.getBatchSize(), ServerInfo.maxBatchSize);
+			subscriber.batch(Math.min(command.getBatchLatency(), ServerInfo.maxBatchLatency), batchSize);
+		}
 		
+		// registered before reading the log, the notifications are held until the response is sent
 		subscribers.add(subscriber);
-		Thread subscribingThread = new Thread(subscriber);
-		subscribingThread.start();
-		while (true) {
-			if (subscriber.getState() == Subscriber.STOPPED){
-				subscribingThread.interrupt();
-				subscribers.remove(subscriber);
-				break;
+		subscriptionIndex.add(subscriber, templateResource.getChannel(), templateResource.getTags());
+		try {
+			MutationLog log = core.getMutationLog();
+			long sequence = log.getSequence();
+			List<MutationLog.Mutation> missed = null;
+			if (resuming && command.getEpoch() == log.getEpoch())
+				missed = log.after(command.getFromSequence());     // null if no longer kept
+			StringBuilder builder = new StringBuilder("{\"response\":\"success\",\"id\":");
+			JsonWriter.quote(id, builder);
+			if (resumable) {
+				builder.append(",\"epoch\":").append(log.getEpoch()).append(",\"sequence\":").append(sequence);
+				if (resuming && missed == null)
+					builder.append(",\"gap\":true");     // too old to replay, a QUERY catches up
 			}
-		};
+			processorListener.onProcessFinished(Message.makeAMessage(builder.append('}').toString()), false);
+			subscriber.resume(missed, missed == null ? sequence : command.getFromSequence());
+			subscriber.run();     // blocks on the client connection until it unsubscribes or goes away
+		} finally {
+			subscriptionIndex.remove(subscriber, templateResource.getChannel(), templateResource.getTags());
+			subscribers.remove(subscriber);
+			subscriber.stop();
+			processorListener.onProcessFinished(new ArrayList<>(), true);
+		}
 	}
 	
 	/**
@@ -471,15 +982,7 @@ public class ServerCommandProcessor {
 	 */	
 	private static List<Message> sendErrorMessage(String message){
 		List<Message> messages =new ArrayList<>();
-		JSONObject jsonObject = new JSONObject();
-		try {
-			jsonObject.put("response","error");
-			jsonObject.put("errorMessage",message);
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		Message response = new Message(jsonObject.toString());
-		messages.add(response);
+		messages.add(new Message(JsonWriter.error(message)));
 		return messages;
 	}
 
@@ -489,283 +992,263 @@ public class ServerCommandProcessor {
 	 */	
 	private static List<Message> sendSuccessMessage(){
 		List<Message> messages = new ArrayList<>();
-		JSONObject jsonObject = new JSONObject();
-		try {
-			jsonObject.put("response", "success");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		Message message = new Message(jsonObject.toString());
-		messages.add(message);
+		messages.add(new Message(JsonWriter.SUCCESS));
 		return messages;
 	}
+
+	private static String nullToEmpty(String string) {
+		return string == null ? "" : string;
+	}
 	
 	class Subscriber implements Runnable, ResourceListener, ServerListener {
 		private ProcessorListener processorListener;
 		private Resource template;
-		private DataInputStream inputStream;
+		private MessageStream messageStream;
 		private boolean relay;
 		private boolean secure;
 		private String id;
 		public static final int RUNNING = 1;
 		public static final int STOPPED = 0;
 		private volatile int state = RUNNING;
-		private List<Thread> relayList;
-		private int resultSize = 0;
+		private NotificationQueue queue;
+		private boolean resumable;
+		private List<MutationLog.Mutation> held = new ArrayList<>();     // notifications until it is resumed
+		private long replayedTo = -1;
 		
-		Subscriber(ProcessorListener messageListener, String id, Resource template, DataInputStream inputStream, boolean relay, boolean secure){
+		Subscriber(ProcessorListener messageListener, String id, Resource template, MessageStream messageStream, boolean relay, boolean secure, boolean resumable){
 			this.processorListener = messageListener;
+			this.resumable = resumable;
 			this.template = template;
-			this.inputStream = inputStream;
+			this.messageStream = messageStream;
 			this.relay = relay;
 			this.secure = secure;
 			this.id = id;
-			this.relayList = Collections.synchronizedList(new ArrayList<>()); 
+			this.queue = new NotificationQueue(ServerInfo.notificationQueueSize, ServerInfo.slowConsumerPolicy, this::send, core.getServerConnection());
+		}
+		
+		/**
+		 * The method makes the subscription send its notifications in batches, {"batch":[...]}, each with 
+		 * the latest version of the resources that changed in the window. Called before it runs.
+		 * @param latency milliseconds the first notification of a batch waits at most
+		 * @param size notifications in a batch at most
+		 */
+		public void batch(long latency, int size) {
+			this.queue = new NotificationQueue(Math.max(ServerInfo.notificationQueueSize, size), ServerInfo.slowConsumerPolicy, latency, size, this::send, core.getServerConnection());
+		}
+		
+		// writes notifications taken from the queue, a batched subscription gets them in one line, or in
+		// as many as needed to keep each under the 64 KB of the legacy framing. A resumable subscription
+		// is told first when notifications were dropped, so it can resume from its last sequence number
+		private boolean send(List<Message> messages, long dropped) {
+			if (queue.isBatched()) {
+				List<Message> lines = new ArrayList<>();
+				int limit = messageStream.isLengthPrefixed() ? Integer.MAX_VALUE : MessageStream.MAX_UTF_LENGTH;
+				StringBuilder builder = new StringBuilder(messages.size() * 256).append("{\"batch\":[");
+				int length = builder.length() + 2;
+				int count = 0;
+				for (Message message : messages) {
+					String notification = message.getType() == MessageType.RESOURCE ? JsonWriter.toJson(message.getResource()) : message.getMessage();
+					int notificationLength = limit == Integer.MAX_VALUE ? notification.length() : MessageStream.utfLength(notification);
+					if (count > 0 && (long) length + notificationLength + 1 > limit) {
+						lines.add(new Message(builder.append("]}").toString()));
+						builder.setLength(0);
+						builder.append("{\"batch\":[");
+						length = builder.length() + 2;
+						count = 0;
+					}
+					if (count > 0) {
+						builder.append(',');
+						length++;
+					}
+					builder.append(notification);
+					length += notificationLength;
+					count++;
+				}
+				lines.add(new Message(builder.append("]}").toString()));
+				messages = lines;
+			}
+			if (resumable && dropped > 0) {
+				List<Message> lines = new ArrayList<>(messages.size() + 1);
+				lines.add(new Message("{\"gap\":true,\"dropped\":" + dropped + "}"));
+				lines.addAll(messages);
+				messages = lines;
+			}
+			if (!processorListener.onProcessFinished(messages, false)) {
+				stop();
+				return false;
+			}
+			return true;
 		}
 		
 		public int getState() {
 			return state;
 		}
 		
-		public void setState(int state) {
-			this.state = state;
+		public String getId() {
+			return id;
+		}
+		
+		public NotificationQueue getQueue() {
+			return queue;
+		}
+		
+		/**
+		 * The method ends the subscription: it leaves its relayed subscriptions, those it was the
+		 * last subscriber of are unsubscribed and closed.
+		 */
+		public void stop() {
+			state = STOPPED;
+			queue.close();
+			relaySubscriptions.detach(this);
 		}
 
+		/**
+		 * The method relays the subscription to the other servers and then listens for the 
+		 * UNSUBSCRIBE command on the calling thread. It returns when the subscription ends.
+		 */
 		@Override
 		public void run() {
 			this.state = RUNNING;
-			Thread listeningUnsubscribeThread = new Thread(new Runnable() {
-				@Override
-				public void run() {
-					String string = null;
-					while(true) {
-						try {
-							if ((string=inputStream.readUTF()) != null) {
-								JSONObject commandObject = new JSONObject(string);
-								if (commandObject.containsKey("command") && commandObject.containsKey("id")){
-									if (((String)commandObject.get("command")).equals("UNSUBSCRIBE")){
-										if (commandObject.get("id").equals(id)){
-											JSONObject resultSizeObject = new JSONObject();
-											resultSizeObject.put("resultSize", resultSize);
-											processorListener.onProcessFinished(Message.makeAMessage(resultSizeObject.toString()), true);
-											state = STOPPED;
-											break;
-										}
-									}
-								}
-							}
-						} catch (IOException e) { 
-							state =  STOPPED;
-							break;
-						} catch (JSONException e) { 
-							state = STOPPED;
-							break;
-						}
-					}
+			if(relay) {
+				// not pruned by the catalog summaries: they tell what a server has now, not what it will publish
+				for(ServerBean serverBean : core.getMembership(secure).list()) {
+					if(core.getMembership(secure).isSelf(serverBean)) continue;
+					startRelay(serverBean);
 				}
-			});
-			
-			listeningUnsubscribeThread.start();
+			}
 			
-			if(relay) {
-				List<ServerBean> serverList = secure ? core.getServerSList() : core.getServerList();
-				for(ServerBean serverBean : serverList) {
-					if(serverBean.equals(secure ? core.getMySServer() : core.getMyServer())) continue;
-					
-					Thread thread = new Thread(new Runnable() {
-						@Override
-						public void run() {
-							JSONObject subscribeObject = new JSONObject();
-							try {
-								subscribeObject.put("id", id);
-								subscribeObject.put("resourceTemplate", Resource.toJson(template));
-								subscribeObject.put("command", "SUBSCRIBE");
-								subscribeObject.put("relay", false);
-							} catch (JSONException e1) { 
-								e1.printStackTrace();
-							}
-							core.getServerConnection().establishPersistentConnection(serverBean, new Message(subscribeObject.toString()), new ServerConnection.MessageListener() {
-								@Override
-								public boolean onMessageReceived(Message message, DataOutputStream outputStream) {
-									try {
-										JSONObject transferJsonObject = new JSONObject(message.getMessage());
-										if (transferJsonObject.containsKey("response") || transferJsonObject.containsKey("resultSize"))
-											return false;
-										if(!processorListener.onProcessFinished(Message.makeMessage(message), false)) {
-											state = STOPPED;
-											return true;
-										}
-										resultSize++;
-										return false;
-									} catch (JSONException e) {
-										e.printStackTrace();
-										return true;
-									}
-								}
-							}, new ServerConnection.StateListener() {
-								@Override
-								public boolean onForceStop(DataOutputStream outputStream) {
-									if (state == Subscriber.STOPPED){
-										try {
-											outputStream.writeUTF("{\"command\":\"UBSUBSCRIBE\", \"id\":"+id+"}");
-											outputStream.flush();
-										} catch (IOException e) {
-											e.printStackTrace();
-										}
-										return true;
-									}
-									return false;
-								}
-							}, secure);
-						}
-					});
-					
-					thread.start();
-					relayList.add(thread);
+			String string = null;
+			try {
+				while(state == RUNNING && (string = messageStream.readMessage()) != null) {
+					Command command = Command.parse(string);
+					if (command.getCommand().equals("UNSUBSCRIBE") && id.equals(command.getId())) {
+						state = STOPPED;
+						queue.flush(ServerInfo.timeout * 1000L);     // the notifications already queued go first
+						processorListener.onProcessFinished(Message.makeAMessage("{\"resultSize\":" + queue.getDelivered() + "}"), true);
+					}
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) { 
+				logger.debug("Subscription " + id + " lost its connection");
+			} catch (JSONException e) { 
+				logger.debug("Subscription " + id + " received an invalid command");
+			} finally {
+				stop();
 			}
 		}
+		
+		// subscribe to the server with the same template, shared with the subscribers with the same template
+		private void startRelay(ServerBean serverBean) {
+			relaySubscriptions.attach(serverBean, template, secure, this);
+		}
+
+		/**
+		 * The method forwards a result of a relayed subscription to our client.
+		 * @param resource the result
+		 * @param message the result as received
+		 */
+		void onRelayed(Resource resource, Message message) {
+			deliver(resultKey(resource), message, -1);
+		}
 
 		@Override
-		public void onResourceChanged(Resource resource) { 
-			if(state == RUNNING) { 
-				List<String> queryTags = new ArrayList<>();
-				for (String tag : template.getTags()) {
-					tag = tag.toLowerCase();
-					queryTags.add(tag);
-					}
-				
-				if ((this.template.getChannel().equals(resource.getChannel())) && (this.template.getOwner().equals("") || this.template.getOwner().equals(resource.getOwner())) &&
-						(this.template.getTags().size() == 0 || this.template.getTags().stream().anyMatch(tag -> resource.getTags().contains(tag))) &&
-						(this.template.getUri().toString().equals("") || this.template.getUri().equals(resource.getUri())) &&
-						((this.template.getName().equals("") || resource.getName().contains(resource.getName())) || (this.template.getDescription().equals("") || resource.getDescription().contains(resource.getDescription())))) {
-					Resource candidate = null;
-					try { 
-						candidate = resource.clone();
-					} catch (CloneNotSupportedException e) {
-						e.printStackTrace();
-					}
-					//candidate.setServerBean(secure ? core.getMySServer() : core.getMyServer());
-					candidate.setOwner("*");
-					this.resultSize++; 
-					if (!processorListener.onProcessFinished(Message.makeAMessage(Resource.toJson(resource).toString()), false)) {
-						this.state = STOPPED;
+		public void onResourceChanged(Resource resource, long sequence) { 
+			if(state == RUNNING && matches(resource)) { 
+				synchronized (this) {
+					if (held != null) {
+						held.add(new MutationLog.Mutation(sequence, resource, false, 0));
+						return;
 					}
+					if (sequence <= replayedTo)
+						return;     // already replayed
 				}
+				notifyChange(resource, sequence);
 			}
 		}
 		
+		private boolean matches(Resource resource) {
+			return (this.template.getChannel().equals(resource.getChannel())) && (this.template.getOwner().equals("") || this.template.getOwner().equals(resource.getOwner())) &&
+					(this.template.getTags().size() == 0 || this.template.getTags().stream().anyMatch(tag -> resource.getTags().contains(tag))) &&
+					(this.template.getUri().toString().equals("") || this.template.getUri().equals(resource.getUri())) &&
+					((this.template.getName().equals("") || resource.getName().contains(resource.getName())) || (this.template.getDescription().equals("") || resource.getDescription().contains(resource.getDescription())));
+		}
+		
+		// a resumable subscription gets the sequence number of the change with the resource
+		private void notifyChange(Resource resource, long sequence) {
+			if (!resumable) {
+				deliver(resourceKey(resource), new Message(resource), sequence);
+				return;
+			}
+			StringBuilder builder = new StringBuilder(256);
+			JsonWriter.writeResource(resource, builder);
+			builder.setLength(builder.length() - 1);
+			deliver(resourceKey(resource), new Message(builder.append(",\"sequence\":").append(sequence).append('}').toString()), sequence);
+		}
+		
+		/**
+		 * The method sends the changes a resumed subscription missed that match its template, then the 
+		 * notifications held since it was registered that came after them.
+		 * @param missed the changes after the sequence number it resumed from, null if there are none to replay
+		 * @param sequence the last change replayed or already seen
+		 */
+		public synchronized void resume(List<MutationLog.Mutation> missed, long sequence) {
+			replayedTo = sequence;
+			if (missed != null) {
+				for (MutationLog.Mutation mutation : missed) {
+					if (!mutation.isDeleted() && matches(mutation.getResource()))
+						notifyChange(mutation.getResource(), mutation.getSequence());
+					replayedTo = Math.max(replayedTo, mutation.getSequence());
+				}
+			}
+			for (MutationLog.Mutation mutation : held) {
+				if (mutation.getSequence() > replayedTo)
+					notifyChange(mutation.getResource(), mutation.getSequence());
+			}
+			held = null;
+		}
+		
+		// queues a notification, the subscription ends if it is gone or too slow to keep up. A relayed
+		// result has no sequence number of ours
+		private boolean deliver(String key, Message message, long sequence) {
+			if (sequence >= 0 ? queue.offer(key, message, sequence) : queue.offer(key, message))
+				return true;
+			if (state == RUNNING) {
+				logger.debug("Subscription " + id + " is too slow, disconnecting");
+				try {
+					messageStream.getInputStream().close();     // a stalled write holds the connection, close it under it
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			stop();
+			return false;
+		}
+		
 		@Override
 		public void onNormalServerChanged(ServerBean serverBean) {
 			if (!secure && relay && state == RUNNING) {
-				Thread thread = new Thread(new Runnable() {
-					@Override
-					public void run() {
-						JSONObject subscribeObject = new JSONObject();
-						try {
-							subscribeObject.put("id", id);
-							subscribeObject.put("resourceTemplate", Resource.toJson(template));
-							subscribeObject.put("command", "SUBSCRIBE");
-							subscribeObject.put("relay", false);
-						} catch (JSONException e1) { 
-							e1.printStackTrace();
-						}
-						
-						core.getServerConnection().establishPersistentConnection(serverBean, new Message(subscribeObject.toString()), new ServerConnection.MessageListener() {
-							@Override
-							public boolean onMessageReceived(Message message, DataOutputStream outputStream) {
-								try {
-									JSONObject transferJsonObject = new JSONObject(message.getMessage());
-									if (transferJsonObject.containsKey("response") || transferJsonObject.containsKey("resultSize"))
-										return false;
-									processorListener.onProcessFinished(Message.makeMessage(message), false);
-									resultSize++;
-									return false;
-								} catch (JSONException e) {
-									e.printStackTrace();
-									return true;
-								}
-							}
-						}, new ServerConnection.StateListener() {
-							@Override
-							public boolean onForceStop(DataOutputStream outputStream) {
-								if (state == Subscriber.STOPPED) {
-									try {
-										outputStream.writeUTF("{\"command\":\"UBSUBSCRIBE\", \"id\":" + id + "}");
-										outputStream.flush();
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-									return true;
-								}
-								return false;
-							}
-						}, secure);
-					}
-				});
-				thread.start();
-				relayList.add(thread);
+				startRelay(serverBean);
 			}
 		}
 
 		@Override
 		public void onSecureServerChanged(ServerBean serverBean) {
 			if(secure && relay && state == RUNNING) {
-				Thread thread = new Thread(new Runnable() {
-					@Override
-					public void run() {
-						JSONObject subscribeObject = new JSONObject(); 
-						try {
-							subscribeObject.put("id", id);
-							subscribeObject.put("resourceTemplate", Resource.toJson(template));
-							subscribeObject.put("command", "SUBSCRIBE");
-							subscribeObject.put("relay", false); 
-						} catch (JSONException e1) { 
-							e1.printStackTrace();
-						}
-						
-						core.getServerConnection().establishPersistentConnection(serverBean, new Message(subscribeObject.toString()), new ServerConnection.MessageListener() {
-							@Override
-							public boolean onMessageReceived(Message message, DataOutputStream outputStream) {
-								try {
-									JSONObject transferJsonObject = new JSONObject(message.getMessage());
-									if (transferJsonObject.containsKey("response") || transferJsonObject.containsKey("resultSize"))
-										return false;
-									processorListener.onProcessFinished(Message.makeMessage(message), false);
-									resultSize++;
-									return false;
-								} catch (JSONException e) { 
-									return true;
-								}
-							}
-						}, new ServerConnection.StateListener() {
-							@Override
-							public boolean onForceStop(DataOutputStream outputStream) {
-								if (state == Subscriber.STOPPED) {
-									try {
-										outputStream.writeUTF("{\"command\":\"UBSUBSCRIBE\", \"id\":" + id + "}");
-										outputStream.flush();
-									} catch (IOException e) { 
-									}
-									return true;
-								}
-								return false;
-							}
-						}, secure);
-					}
-				});
-				thread.start();
-				relayList.add(thread);
+				startRelay(serverBean);
 			}
 		}
 	}
 
 	interface ProcessorListener {
 		boolean onProcessFinished(List<Message> messages, boolean closeConnection);
+		void onFramingRequested(String framing, String compression, String encoding);
+		// true if the connection stays open after the reply, the requester is then told before the reply
+		boolean grantKeepAlive();
 	}
 	
 	interface ResourceListener{
-		void onResourceChanged(Resource resource);
+		void onResourceChanged(Resource resource, long sequence);
 	}
 
 	interface ServerListener{
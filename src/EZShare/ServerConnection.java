@@ -9,36 +9,78 @@ package EZShare;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException; 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket; 
-import java.security.NoSuchAlgorithmException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
  
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;  
 import org.apache.log4j.Logger; 
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
 
 public class ServerConnection {
 	Logger logger = Logger.getLogger(ServerConnection.class);
 	
 	private ThreadPoolExecutor executor;
 	private ThreadPoolExecutor persistentExecutor;
+	private ThreadPoolExecutor relayExecutor;
+	private ScheduledExecutorService hedgeScheduler;
+	private Map<String, PeerLatency> latencies;
+	private Map<String, PeerLatency> secureLatencies;
+	private Map<String, PeerHealth> health;     // by Membership.key, like the latencies
+	private Map<String, PeerHealth> secureHealth;
+	private static final AtomicLong hedgedRequests = new AtomicLong();
+	private static final AtomicLong skippedRequests = new AtomicLong();
 	private Map<String,Long> connectionIntevalInfo; 
+	private Map<String, Integer> keptAlive;     // connections kept alive for other servers, by address
+	private PeerConnectionPool connectionPool;
 	
 	public ServerConnection() {
 		executor = new ThreadPoolExecutor(50, 50, ServerInfo.timeout, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-		persistentExecutor = new ThreadPoolExecutor(50, 50, ServerInfo.timeout, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		// relayed subscriptions block on their socket until unsubscribed, so they can't wait in a queue
+		persistentExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, ServerInfo.timeout, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		// one thread per peer of a relayed request, so peers are asked at the same time
+		relayExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, ServerInfo.timeout, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		hedgeScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "relay-hedger");
+			thread.setDaemon(true);
+			return thread;
+		});
+		latencies = new ConcurrentHashMap<>();
+		secureLatencies = new ConcurrentHashMap<>();
+		health = new ConcurrentHashMap<>();
+		secureHealth = new ConcurrentHashMap<>();
 		connectionIntevalInfo = new ConcurrentHashMap<>();
+		keptAlive = new ConcurrentHashMap<>();
+		connectionPool = new PeerConnectionPool(this);
+	}
+	
+	public PeerConnectionPool getConnectionPool() {
+		return connectionPool;
 	}
 	
 	/**
@@ -68,16 +110,11 @@ public class ServerConnection {
 	
 	public void handleSecureConnection(ServerBean serverBean) {
 		try { 
-			SSLContext context = null;
-			try {
-				context = SSLContext.getDefault();
-			} catch (NoSuchAlgorithmException e) { 
-				e.printStackTrace();
-			}
-			SSLServerSocketFactory sslserversocketfactory = (SSLServerSocketFactory) context.getServerSocketFactory();
+			SSLServerSocketFactory sslserversocketfactory = SSLConfig.getServerSocketFactory();
 			SSLServerSocket sslserversocket = (SSLServerSocket) sslserversocketfactory.createServerSocket(ServerInfo.sport);
 			while (true) { 
 				SSLSocket sslClientSocket = (SSLSocket) sslserversocket.accept();
+				SSLConfig.track(sslClientSocket);
 				sslClientSocket.setSoTimeout(ServerInfo.timeout * 1000);
 				String ipAddress = sslClientSocket.getInetAddress().getHostAddress();
 				logger.debug("Securely connected to: " + sslClientSocket.getInetAddress().getHostAddress() + ":" + sslClientSocket.getPort());
@@ -92,6 +129,28 @@ public class ServerConnection {
 		}
 	}
 	
+	/**
+	 * The method takes one of the ServerInfo.maxConnectionsPerPeer connections another server may keep 
+	 * alive, so that idle connections of a few servers can't hold every worker thread.
+	 * @param address the address of the other server
+	 * @param secure
+	 * @return false if the server already has as many connections kept alive
+	 */
+	public boolean acquireKeepAlive(InetAddress address, boolean secure) {
+		boolean[] acquired = {false};
+		keptAlive.compute((secure ? "secure " : "") + address.getHostAddress(), (key, count) -> {
+			if (count != null && count >= ServerInfo.maxConnectionsPerPeer)
+				return count;
+			acquired[0] = true;
+			return count == null ? 1 : count + 1;
+		});
+		return acquired[0];
+	}
+
+	public void releaseKeepAlive(InetAddress address, boolean secure) {
+		keptAlive.computeIfPresent((secure ? "secure " : "") + address.getHostAddress(), (key, count) -> count <= 1 ? null : count - 1);
+	}
+	
 	// true -- execute connection
 	// false -- abort
 	private boolean checkConnectionInterval(String ipAddress){
@@ -110,124 +169,427 @@ public class ServerConnection {
 	}
 	
 	/**
-	 * The method is to establish a no-persistent connection with a specific server. Send the message and
-	 * receive the messages from the server and return them.
+	 * The method is to send a request to a specific server and receive the messages from the server 
+	 * and return them. The connection is borrowed from the connection pool and given back once the 
+	 * reply is complete, so servers that keep connections alive are not reconnected every time.
 	 * @param serverBean an object with attributes: hostname, address, port
 	 * @param message a json string describing what the user enters in terminal
 	 * @return messages a list of messages from the server
 	 */
 	public List<Message> establishConnection(ServerBean serverBean, Message message, boolean secure) {
-		Socket socket = null;
-		Message response = null;
+		return establishConnection(serverBean, message, secure, ServerInfo.timeout * 1000);
+	}
+
+	/**
+	 * The method is establishConnection with its own timeout, used both to connect and for every read.
+	 * @param serverBean
+	 * @param message
+	 * @param secure
+	 * @param timeout in milliseconds
+	 * @return messages a list of messages from the server, partial if it timed out
+	 */
+	public List<Message> establishConnection(ServerBean serverBean, Message message, boolean secure, int timeout) {
+		return establishConnection(serverBean, message, secure, timeout, null);
+	}
+
+	/**
+	 * The method is establishConnection with a listener called for every message as soon as it is read.
+	 * The conversation is abandoned if the listener returns true.
+	 * @param serverBean
+	 * @param message
+	 * @param secure
+	 * @param timeout in milliseconds
+	 * @param listener may be null
+	 * @return messages a list of messages from the server, partial if it timed out
+	 */
+	public List<Message> establishConnection(ServerBean serverBean, Message message, boolean secure, int timeout, MessageListener listener) {
+		String command = null;
+		JSONObject requestObject = null;
+		try {
+			requestObject = new JSONObject(message.getMessage());
+			command = requestObject.optString("command", "");
+			if (Command.canKeepAlive(command))
+				requestObject.put("keepAlive", true);
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return new ArrayList<>();
+		}
 		List<Message> messages = new ArrayList<>();
+		boolean[] abandoned = {false};
+		// the latency of a peer is the time to its first line, as for hedging: a long reply or a stream 
+		// is not a slow peer
+		long start = System.currentTimeMillis();
+		long[] firstLine = {-1};
+		MessageListener messageListener = (response, messageStream) -> {
+			if (firstLine[0] < 0)
+				firstLine[0] = System.currentTimeMillis() - start;
+			return listener != null && (abandoned[0] = listener.onMessageReceived(response, messageStream));
+		};
 		try {
-			if(secure) { 
-				SSLContext context = null;
-				try {
-					context = SSLContext.getDefault();
-				} catch (NoSuchAlgorithmException e) { 
-					e.printStackTrace();
-				}
-				SSLSocketFactory sslsocketfactory = (SSLSocketFactory) context.getSocketFactory();
-				socket = (SSLSocket) sslsocketfactory.createSocket(serverBean.getAddress(), serverBean.getPort());
+			if (!sendPooledRequest(serverBean, requestObject, command, messages, secure, timeout, messageListener) && messages.size() == 0) {
+				// a stale pooled connection, try once more with a fresh one
+				sendPooledRequest(serverBean, requestObject, command, messages, secure, timeout, messageListener);
+			}
+		} catch (IOException e) {
+			logger.debug("Lost connection to: " + (secure ? "(secure) " : "(insecure) ") + serverBean);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		boolean complete = isComplete(command, messages);
+		// a timeout before the first line counts as a slow answer, a refused connection doesn't count
+		if (firstLine[0] >= 0)
+			getLatency(serverBean, secure).record(firstLine[0]);
+		else if (elapsed >= timeout)
+			getLatency(serverBean, secure).record(elapsed);
+		if (!abandoned[0]) {
+			if (complete) {
+				getHealth(serverBean, secure).recordSuccess();
 			} else {
-				socket = new Socket(serverBean.getAddress(), serverBean.getPort());
-			}	
-			socket.setSoTimeout(ServerInfo.timeout * 1000);
-			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-			outputStream.writeUTF(message.getMessage());
-			outputStream.flush();
-			
-			logger.info("SENT: " + (secure ? "(secure) " : "(insecure) ") + message.getMessage());
-			String data = null; 
-			while ((data = inputStream.readUTF()) != null) { 
-				logger.info("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + data);
-				response = new Message(MessageType.STRING, data, null, null);
+				getHealth(serverBean, secure).recordFailure();
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * The method returns the latency statistics of a peer.
+	 * @param serverBean
+	 * @param secure
+	 * @return latency, created empty for a new peer
+	 */
+	public PeerLatency getLatency(ServerBean serverBean, boolean secure) {
+		return (secure ? secureLatencies : latencies).computeIfAbsent(Membership.key(serverBean), key -> new PeerLatency());
+	}
+
+	/**
+	 * The method returns the circuit breaker of a peer.
+	 * @param serverBean
+	 * @param secure
+	 * @return health, created closed for a new peer
+	 */
+	public PeerHealth getHealth(ServerBean serverBean, boolean secure) {
+		return (secure ? secureHealth : health).computeIfAbsent(Membership.key(serverBean), key -> new PeerHealth());
+	}
+
+	public static long getSkippedRequests() {
+		return skippedRequests.get();
+	}
+
+	public static long getHedgedRequests() {
+		return hedgedRequests.get();
+	}
+	
+	// true if the reply was read completely. false if a reused connection broke before the first line. 
+	// The connection goes back to the pool only if the server said it keeps it open
+	private boolean sendPooledRequest(ServerBean serverBean, JSONObject requestObject, String command, List<Message> messages, boolean secure, int timeout, MessageListener listener) throws IOException {
+		PeerConnectionPool.PeerConnection connection = connectionPool.borrow(serverBean, secure, timeout);
+		boolean complete = false;
+		boolean keptAlive = false;
+		try {
+			connection.getSocket().setSoTimeout(timeout);
+			MessageStream messageStream = connection.getMessageStream();
+			// a new connection asks for length-prefixed framing, a reused one already has its framing
+			boolean negotiate = !connection.isReused();
+			String request = negotiate ? MessageStream.withFraming(requestObject, true) : requestObject.toString();
+			messageStream.writeMessage(request);
+			messageStream.flush();
+			logger.info("SENT: " + (secure ? "(secure) " : "(insecure) ") + request);
+			String first = negotiate ? messageStream.readNegotiation() : null;
+			Message response = first != null ? new Message(first) : null;
+			while (!complete) {
+				if (response == null)
+					response = messageStream.read();
+				if (response.getType() == MessageType.STRING && MessageStream.KEEP_ALIVE_ACK.equals(response.getMessage())) {
+					keptAlive = true;
+					response = null;
+					continue;
+				}
 				messages.add(response);
-			} 
-		} catch (IOException e) {
-			logger.debug("Lost connection to: " + (secure ? "(secure) " : "(insecure) ") + socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
-		} finally { 
-			if (socket != null) {
-				try {
-					socket.close();
-					logger.debug("Close connection to: " + (secure ? "(secure) " : "(insecure) ") + socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
-				} catch (IOException e) { 
-					e.printStackTrace();
+				if (response.getType() == MessageType.RESOURCE) {
+					if (logger.isDebugEnabled())
+						logger.debug("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + response.toJsonString());
+				} else {
+					logger.info("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + response.getMessage());
+					complete = isLastLine(command, response.getMessage(), messages.size());
 				}
+				if (listener != null && listener.onMessageReceived(response, messageStream)) {
+					connectionPool.release(connection, false);
+					return true;
+				}
+				response = null;
 			}
-			return messages;
-		}  
+		} catch (EOFException e) {
+			// the server closed the connection after the reply, it doesn't keep connections alive
+			complete = messages.size() > 0;
+			connectionPool.release(connection, false);
+			return complete || !connection.isReused();
+		} catch (IOException e) {
+			connectionPool.release(connection, false);
+			if (connection.isReused() && messages.size() == 0)
+				return false;
+			throw e;
+		}
+		connectionPool.release(connection, complete && keptAlive);
+		return true;
+	}
+	
+	/**
+	 * The method sends a request to several servers at the same time. Every message they send is handed
+	 * to the listener as soon as it arrives, from the thread of that server, so the listener must be
+	 * thread safe. Each server has ServerInfo.relayTimeout to connect and between two lines (less once
+	 * its p99 is known), and the whole relay ends after ServerInfo.queryDeadline. The servers that 
+	 * usually answer fastest are asked first, slow ones get a hedged request and those whose circuit
+	 * breaker is open are skipped.
+	 * @param serverBeans the servers to ask
+	 * @param message the request
+	 * @param secure
+	 * @param listener called for every message, returns true to stop listening to that server
+	 * @return the servers that did not send a complete reply in time
+	 */
+	public List<ServerBean> relay(List<ServerBean> serverBeans, Message message, boolean secure, MessageListener listener) {
+		long deadline = System.currentTimeMillis() + ServerInfo.queryDeadline * 1000L;
+		int timeout = Math.min(ServerInfo.relayTimeout, ServerInfo.queryDeadline) * 1000;
+		String command = "";
+		try {
+			command = Command.parse(message.getMessage()).getCommand();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		// the fastest peers first, peers never measured before all others
+		List<ServerBean> ordered = new ArrayList<>(serverBeans);
+		ordered.sort(Comparator.comparingDouble(serverBean -> getLatency(serverBean, secure).getEwma()));
+		Map<ServerBean, Future<List<Message>>> replies = new LinkedHashMap<>();
+		List<ServerBean> unanswered = new ArrayList<>();
+		for (ServerBean serverBean : ordered) {
+			// a peer with an open circuit breaker is not even tried
+			if (!getHealth(serverBean, secure).allowRequest()) {
+				skippedRequests.incrementAndGet();
+				unanswered.add(serverBean);
+				continue;
+			}
+			replies.put(serverBean, relayTo(serverBean, message, secure, getLatency(serverBean, secure).getTimeout(timeout), listener));
+		}
+		for (Map.Entry<ServerBean, Future<List<Message>>> reply : replies.entrySet()) {
+			List<Message> results = null;
+			try {
+				results = reply.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// the thread gives up by itself within the relay timeout
+				reply.getValue().cancel(true);
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				reply.getValue().cancel(true);
+			}
+			if (results == null || !isComplete(command, results)) {
+				logger.debug("No answer in time from: " + (secure ? "(secure) " : "(insecure) ") + reply.getKey());
+				unanswered.add(reply.getKey());
+			}
+		}
+		return unanswered;
+	}
+
+	/**
+	 * The method sends a request to one peer. If the peer has not sent anything after its own p95, 
+	 * a hedged copy of the request goes out on another connection. The first of the two to send a line 
+	 * is listened to, the other one is abandoned.
+	 * @return the future reply of the attempt that answered
+	 */
+	private CompletableFuture<List<Message>> relayTo(ServerBean serverBean, Message message, boolean secure, int timeout, MessageListener listener) {
+		CompletableFuture<List<Message>> reply = new CompletableFuture<>();
+		AtomicInteger winner = new AtomicInteger(0);
+		AtomicInteger running = new AtomicInteger(1);
+		relayExecutor.execute(() -> attempt(1, serverBean, message, secure, timeout, listener, reply, winner, running));
+		long hedgeDelay = getLatency(serverBean, secure).getPercentile(95);
+		if (ServerInfo.hedging && hedgeDelay >= 0) {
+			hedgeScheduler.schedule(() -> {
+				if (reply.isDone() || winner.get() != 0)
+					return;
+				running.incrementAndGet();
+				hedgedRequests.incrementAndGet();
+				logger.debug("Hedging the request to: " + (secure ? "(secure) " : "(insecure) ") + serverBean);
+				relayExecutor.execute(() -> attempt(2, serverBean, message, secure, timeout, listener, reply, winner, running));
+			}, hedgeDelay, TimeUnit.MILLISECONDS);
+		}
+		return reply;
+	}
+
+	private void attempt(int id, ServerBean serverBean, Message message, boolean secure, int timeout, MessageListener listener, 
+			CompletableFuture<List<Message>> reply, AtomicInteger winner, AtomicInteger running) {
+		List<Message> results = establishConnection(serverBean, message, secure, timeout, (response, messageStream) -> {
+			if (winner.get() != id && !winner.compareAndSet(0, id))
+				return true;     // the other attempt answered first
+			return listener != null && listener.onMessageReceived(response, messageStream);
+		});
+		int left = running.decrementAndGet();
+		if (winner.get() == id || left == 0)
+			reply.complete(results);
+	}
+
+	/**
+	 * The method runs relay() on a relay thread, so that the caller can consume the messages meanwhile.
+	 * @param serverBeans
+	 * @param message
+	 * @param secure
+	 * @param listener
+	 * @return the future list of servers that did not answer in time
+	 */
+	public CompletableFuture<List<ServerBean>> relayAsync(List<ServerBean> serverBeans, Message message, boolean secure, MessageListener listener) {
+		return CompletableFuture.supplyAsync(() -> relay(serverBeans, message, secure, listener), relayExecutor);
+	}
+
+	private static boolean isComplete(String command, List<Message> messages) {
+		if (messages.size() == 0)
+			return false;
+		Message last = messages.get(messages.size() - 1);
+		return last.getType() == MessageType.STRING && isLastLine(command, last.getMessage(), messages.size());
+	}
+	
+	// an error, a resultSize or the single response of a command without results ends the reply
+	private static boolean isLastLine(String command, String data, int lineNumber) {
+		if (data.contains("\"resultSize\":") || data.contains("\"response\":\"error\""))
+			return true;
+		return lineNumber == 1 && !"QUERY".equals(command) && !"FETCH".equals(command);
+	}
+	
+	/**
+	 * The method opens a socket to the server, a SSL one if secure.
+	 * @param serverBean
+	 * @param secure
+	 * @return socket
+	 * @throws IOException
+	 */
+	public Socket openSocket(ServerBean serverBean, boolean secure) throws IOException {
+		return openSocket(serverBean, secure, ServerInfo.timeout * 1000);
+	}
+
+	/**
+	 * The method opens a socket to the server, a SSL one if secure.
+	 * @param serverBean
+	 * @param secure
+	 * @param timeout in milliseconds, to connect and for every read
+	 * @return socket
+	 * @throws IOException
+	 */
+	public Socket openSocket(ServerBean serverBean, boolean secure, int timeout) throws IOException {
+		InetAddress address = serverBean.getAddress();
+		if (address == null)
+			throw new UnknownHostException(serverBean.getHostname());
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(address, serverBean.getPort()), timeout);
+			if(secure) { 
+				// the shared context keeps the session, so a reconnect to the same server resumes it
+				SSLSocket sslSocket = (SSLSocket) SSLConfig.getSocketFactory().createSocket(socket, serverBean.getHostname(), serverBean.getPort(), true);
+				SSLConfig.track(sslSocket);
+				socket = sslSocket;
+			}
+			socket.setSoTimeout(timeout);
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+		return socket;
 	}
 	 
-	public void establishPersistentConnection(ServerBean serverBean, Message message, MessageListener messageListener, StateListener stateListener, boolean secure) {
+	/**
+	 * The method establishes a persistent connection with a specific server (a relayed subscription) and 
+	 * hands every message it sends to the message listener. The calling thread blocks on the socket until 
+	 * the listener returns true, the server closes the connection or the stop signal completes. When stopped, 
+	 * the state listener is called once to say goodbye to the server and the socket is closed.
+	 * @param serverBean the server to subscribe to
+	 * @param message the subscribe command
+	 * @param stopSignal completed when the subscription this connection serves ends
+	 */
+	public void establishPersistentConnection(ServerBean serverBean, Message message, MessageListener messageListener, StateListener stateListener, CompletableFuture<Void> stopSignal, boolean secure) {
+		if (stopSignal.isDone()) return;
 		Socket socket = null;
+		MessageStream messageStream = null;
 		try {
-			if(secure) { 
-				SSLContext context = null;
-				try {
-					context = SSLContext.getDefault();
-				} catch (NoSuchAlgorithmException e) { 
-					e.printStackTrace();
-				}
-				SSLSocketFactory sslsocketfactory = (SSLSocketFactory) context.getSocketFactory();
-				socket = (SSLSocket) sslsocketfactory.createSocket(serverBean.getAddress(), serverBean.getPort());
-			} else {
-				socket = new Socket(serverBean.getAddress(), serverBean.getPort());
-			}	 
-			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-			outputStream.writeUTF(message.getMessage());
-			outputStream.flush();
+			socket = openSocket(serverBean, secure);
+			socket.setSoTimeout(0);     // subscriptions stay open until unsubscribed
+			messageStream = new MessageStream(new DataInputStream(socket.getInputStream()), new DataOutputStream(socket.getOutputStream()));
+			messageStream.setMaxFrameSize(ServerInfo.maxPeerFrameSize);     // replies of the server asked
+			Socket persistentSocket = socket;
+			MessageStream persistentStream = messageStream;
+			String request = message.getMessage();
+			try {
+				request = MessageStream.withFraming(new JSONObject(request), true);
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+			messageStream.writeMessage(request);
+			messageStream.flush();
 			
-			logger.info("SENT: " + (secure ? "(secure) " : "(insecure) ") + "(persistent) " + message.getMessage());
+			logger.info("SENT: " + (secure ? "(secure) " : "(insecure) ") + "(persistent) " + request);
 			
-			// The thread listens for incoming message. Stops when it receives one message.
-			Thread listeningThread = new Thread(new Runnable() {
-				@Override
-				public void run() {
-					String data = null;
-					try {
-						while((data = inputStream.readUTF()) != null) {
-							Message response = new Message(data);
-							logger.info("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + "(persistent) " + response.getMessage());
-							if(messageListener.onMessageReceived(response, outputStream)) break;
-						}
-						//logger.debug("Close connection:" + (secure ? "(secure) " : "(insecure) ") + socket.getInetAddress() + socket.getPort());
-					} catch(IOException e) {
-						e.printStackTrace();
-					}
+			// cancellation: the blocked read below fails as soon as the socket is closed
+			stopSignal.whenComplete((result, cause) -> {
+				synchronized (persistentStream) {
+					if (!persistentSocket.isClosed())
+						stateListener.onForceStop(persistentStream);
+					closeQuietly(persistentSocket);
 				}
 			});
-
-			listeningThread.start();
-
+			
+			String first = messageStream.readNegotiation();
+			Message response = first != null ? new Message(first) : null;
+			boolean answered = false;
 			while(true) {
-				if(stateListener.onForceStop(outputStream) || socket.isClosed()) {
-					socket.close();
-					break;
+				if (response == null)
+					response = messageStream.read();
+				if (!answered) {
+					answered = true;
+					getHealth(serverBean, secure).recordSuccess();
 				}
+				if (response.getType() == MessageType.STRING)
+					logger.info("RECEIVED: " + (secure ? "(secure) " : "(insecure) ") + "(persistent) " + response.getMessage());
+				if(messageListener.onMessageReceived(response, messageStream)) break;
+				response = null;
 			}
 		} catch(IOException e) {
-			e.printStackTrace();
+			if (!stopSignal.isDone()) {
+				logger.debug("Lost connection to: " + (secure ? "(secure) " : "(insecure) ") + "(persistent) " + serverBean);
+				getHealth(serverBean, secure).recordFailure();
+			}
 		} finally {
-			try {
-				if(socket != null) {
-					socket.close();
-				} 
-			} catch (IOException e) { 
-				e.printStackTrace();				
+			if (messageStream != null) {
+				synchronized (messageStream) {
+					closeQuietly(socket);
+					messageStream.end();
+				}
+			} else {
+				closeQuietly(socket);
+			}
+			logger.debug("Close connection to: " + (secure ? "(secure) " : "(insecure) ") + "(persistent) " + serverBean);
+		}
+	}
+	
+	/**
+	 * The method runs a persistent (relay) connection on the persistent thread pool.
+	 * @param task
+	 * @return future to cancel the task
+	 */
+	public Future<?> executePersistent(Runnable task) {
+		return persistentExecutor.submit(task);
+	}
+	
+	private void closeQuietly(Socket socket) {
+		try {
+			if (socket != null && !socket.isClosed()) {
+				socket.close();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	interface MessageListener {
-		boolean onMessageReceived(Message message, DataOutputStream outputStream);
+		boolean onMessageReceived(Message message, MessageStream messageStream);
 	}
 	
 	interface StateListener {
-		boolean onForceStop(DataOutputStream outputStream);
+		void onForceStop(MessageStream messageStream);
 	}
 }
 
@@ -9,16 +9,24 @@
 
 package EZShare;
  
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections; 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List; 
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
-import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
-import org.apache.wink.json4j.JSONObject;
-import org.apache.wink.json4j.OrderedJSONObject;
 
 public class ServerCore {
 	private int status;
@@ -26,16 +34,35 @@ public class ServerCore {
 	private ServerBean mySServer;
 	private ServerConnection serverConnection; 
 	private List<Resource> resources;
-	private List<ServerBean> serverList;
-	private List<ServerBean> serverSList;
+	private Membership membership;
+	private Membership sMembership;
+	private Set<String> legacyPeers;
+	private CatalogSummary summary;
+	private CatalogTree catalogTree;
+	private MutationLog mutationLog;
+	private RemoteCatalogCache remoteCache;
+	private volatile long primaryEpoch = -1;     // the stream of the primary this read replica follows
+	private volatile long appliedSequence = 0;
+	private volatile long primarySequence = 0;
+	private volatile long lastReplicated = 0;
+	private HashRing ring;
+	private long ringChanges = -1;
+	private Map<String, CatalogSummary> peerSummaries;
 	private static ServerCore serverCore;  
+	private static AtomicLong exchangeRounds = new AtomicLong();
+	private static AtomicLong exchangeBytes = new AtomicLong();
+	private static AtomicLong syncBytes = new AtomicLong();
+	private static AtomicLong syncedEntries = new AtomicLong();
+	private static final int SYNC_BATCH_CHARS = 16 * 1024;
+	private static AtomicLong forwardedChanges = new AtomicLong();
+	private static AtomicLong movedResources = new AtomicLong();
 	
 	Logger logger = Logger.getLogger(ServerCore.class); 
  	
 	private ServerCore() {
 		resources= Collections.synchronizedList(new ArrayList<>());
-		serverList = Collections.synchronizedList(new ArrayList<>());
-		serverSList = Collections.synchronizedList(new ArrayList<>());
+		legacyPeers = ConcurrentHashMap.newKeySet();
+		peerSummaries = new ConcurrentHashMap<>();
 	}
 	
 	public int getStatus() {
@@ -78,20 +105,230 @@ public class ServerCore {
 		this.resources = resources;
 	}
 
+	/**
+	 * @return a copy of the insecure server list, this server included
+	 */
 	public List<ServerBean> getServerList() {
-		return serverList;
+		return membership.list();
 	}
 	
-	public void setServerList(List<ServerBean> serverList) {
-		this.serverList = serverList;
+	/**
+	 * @return a copy of the secure server list, this server included
+	 */
+	public List<ServerBean> getServerSList() {
+		return sMembership.list();
 	}
 	
-	public List<ServerBean> getServerSList() {
-		return serverSList;
+	public Membership getMembership(boolean secure) {
+		return secure ? sMembership : membership;
+	}
+	
+	/**
+	 * The method tells whether a connection comes from another server of the server list or from a 
+	 * replica, the only ones whose connections are kept alive between commands.
+	 * @param address the address the connection comes from
+	 * @param secure
+	 * @return true if a server other than this one has that address
+	 */
+	public boolean isKnownPeer(InetAddress address, boolean secure) {
+		Membership servers = getMembership(secure);
+		List<ServerBean> peers = servers.list();
+		peers.addAll(ServerInfo.replicas);
+		for (ServerBean peer : peers) {
+			if (servers.isSelf(peer))
+				continue;
+			if (address.equals(peer.getAddress()))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the catalog summary of this server
+	 */
+	public CatalogSummary getSummary() {
+		return summary;
+	}
+	
+	/**
+	 * @return the tree over the catalog compared with the replicas
+	 */
+	public CatalogTree getCatalogTree() {
+		return catalogTree;
+	}
+	
+	/**
+	 * The method returns the hash ring of the insecure server list used in channel ownership mode. 
+	 * It is rebuilt when the server list changed, and the resources whose channel changed owners are 
+	 * then handed over in the background.
+	 * @return ring
+	 */
+	public synchronized HashRing getRing() {
+		long changes = membership.getChanges();
+		if (ring == null || changes != ringChanges) {
+			HashRing previous = ring;
+			ring = new HashRing(membership.list(), ServerInfo.virtualNodes);
+			ringChanges = changes;
+			if (previous != null) {
+				HashRing current = ring;
+				new Thread(new Runnable() {
+					public void run() {
+						rebalance(previous, current);
+					}
+				}).start();
+			}
+		}
+		return ring;
 	}
 	
-	public void setServerSList(List<ServerBean> serverSList) {
-		this.serverSList = serverSList;
+	/**
+	 * The method sends a PUBLISH or REMOVE to the owner of the channel of the resource.
+	 * @param owner
+	 * @param command PUBLISH or REMOVE
+	 * @param resource
+	 * @return true if the owner applied it
+	 */
+	public boolean forward(ServerBean owner, String command, Resource resource) {
+		StringBuilder builder = new StringBuilder("{\"command\":");
+		JsonWriter.quote(command, builder);
+		builder.append(",\"forwarded\":true,\"secret\":");
+		JsonWriter.quote(ServerInfo.secret, builder);
+		builder.append(",\"resource\":");
+		JsonWriter.writeResource(resource, builder);
+		Message message = new Message(MessageType.STRING, builder.append('}').toString(), null, null);
+		List<Message> messages = serverConnection.establishConnection(owner, message, false, ServerInfo.relayTimeout * 1000);
+		if (messages.size() == 0)
+			return false;
+		forwardedChanges.incrementAndGet();
+		try {
+			return "success".equals(Command.parseReply(messages.get(0).getMessage()).getResponse());
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * The method hands the resources over to the servers that became owners of their channel. Only the
+	 * channels whose owners changed are touched. A resource this server stopped owning is removed once
+	 * every new owner has it. Files shared here are not handed over.
+	 * @param previous the ring before the server list changed
+	 * @param current the ring after
+	 */
+	private void rebalance(HashRing previous, HashRing current) {
+		List<Resource> copy;
+		synchronized (resources) {
+			copy = new ArrayList<>(resources);
+		}
+		Map<String, List<ServerBean>> newOwners = new HashMap<>();     // by channel, null if the owners didn't change
+		Map<String, Boolean> leaving = new HashMap<>();
+		for (Resource resource : copy) {
+			if ("file".equals(resource.getUri().getScheme()))
+				continue;     // shared files stay on the server they are shared on
+			String channel = resource.getChannel();
+			if (!newOwners.containsKey(channel)) {
+				// this server may be listed under another name, Membership.isSelf recognizes it
+				Set<String> before = new HashSet<>();
+				boolean wasOwner = false;
+				for (ServerBean owner : previous.owners(channel, ServerInfo.replicationFactor)) {
+					if (membership.isSelf(owner))
+						wasOwner = true;
+					else
+						before.add(Membership.key(owner));
+				}
+				List<ServerBean> after = current.owners(channel, ServerInfo.replicationFactor);
+				List<ServerBean> added = new ArrayList<>();
+				boolean isOwner = false;
+				for (ServerBean owner : after) {
+					if (membership.isSelf(owner))
+						isOwner = true;
+					else if (!before.contains(Membership.key(owner)))
+						added.add(owner);
+				}
+				newOwners.put(channel, added.isEmpty() && (isOwner || !wasOwner) ? null : added);
+				leaving.put(channel, wasOwner && !isOwner);
+			}
+			List<ServerBean> added = newOwners.get(channel);
+			if (added == null)
+				continue;
+			boolean handedOver = true;
+			for (ServerBean owner : added) {
+				handedOver &= forward(owner, "PUBLISH", resource);
+			}
+			if (leaving.get(channel) && handedOver) {
+				ServerCommandProcessor.getInstance().applyMutation(resource, true);
+				movedResources.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * @return the copies of the catalogs of the other servers, used when ServerInfo.remoteCache is set
+	 */
+	public RemoteCatalogCache getRemoteCache() {
+		return remoteCache;
+	}
+	
+	/**
+	 * @return the numbered changes of the catalog followed by the read replicas
+	 */
+	public MutationLog getMutationLog() {
+		return mutationLog;
+	}
+	
+	/**
+	 * @return the changes of the primary this read replica has not applied yet, -1 if it is not a read replica
+	 */
+	public long getReplicationLag() {
+		return ServerInfo.primary == null ? -1 : Math.max(0, primarySequence - appliedSequence);
+	}
+	
+	/**
+	 * @return milliseconds since this read replica last heard from its primary, -1 if it is not a read replica
+	 */
+	public long getReplicationAge() {
+		return ServerInfo.primary == null ? -1 : System.currentTimeMillis() - lastReplicated;
+	}
+	
+	/**
+	 * The method tells whether a relayed query may match something on another server, according to the 
+	 * catalog summary it sent in an exchange. A server without a summary younger than ServerInfo.summaryTtl
+	 * may match anything. Pruning is off unless ServerInfo.summaryTtl is set: a summary is only as recent 
+	 * as the last exchange with its server, so resources published since then are missed.
+	 * @param serverBean
+	 * @param secure
+	 * @param template the relayed template
+	 * @return false if the server is known to have nothing matching
+	 */
+	public boolean mightMatch(ServerBean serverBean, boolean secure, Resource template) {
+		CatalogSummary peerSummary = peerSummaries.get((secure ? "secure " : "") + serverBean);
+		if (ServerInfo.summaryTtl <= 0 || peerSummary == null || System.currentTimeMillis() - peerSummary.getReceivedAt() > ServerInfo.summaryTtl * 1000L)
+			return true;
+		return peerSummary.mightMatch(template);
+	}
+	
+	public static long getExchangeRounds() {
+		return exchangeRounds.get();
+	}
+	
+	public static long getExchangeBytes() {
+		return exchangeBytes.get();
+	}
+	
+	public static long getForwardedChanges() {
+		return forwardedChanges.get();
+	}
+	
+	public static long getMovedResources() {
+		return movedResources.get();
+	}
+	
+	public static long getSyncBytes() {
+		return syncBytes.get();
+	}
+	
+	public static long getSyncedEntries() {
+		return syncedEntries.get();
 	}
 	
 	public static ServerCore getInstance() {
@@ -110,10 +347,14 @@ public class ServerCore {
 	 * It adds its information to the server list for exchanging and creates a thread pool.
 	 */
 	public void initServer() {
+		long version = System.currentTimeMillis();   // a restarted server replaces its old entries
+		summary = new CatalogSummary(ServerInfo.summaryBits, version);
+		catalogTree = new CatalogTree(ServerInfo.syncDepth);
+		mutationLog = new MutationLog(ServerInfo.mutationLogSize, version);
 		this.myServer = new ServerBean(ServerInfo.hostName, ServerInfo.port); 
-		serverList.add(myServer); 
+		membership = new Membership(myServer, version); 
 		this.mySServer = new ServerBean(ServerInfo.hostName, ServerInfo.sport); 
-		serverSList.add(mySServer);
+		sMembership = new Membership(mySServer, version);
 		
 		logger.info("Starting the EZShare Server");
 		logger.info("using secret: " + ServerInfo.secret);
@@ -123,6 +364,7 @@ public class ServerCore {
 		logger.info("started ");
 		
 		serverConnection = new ServerConnection(); // create a thread pool
+		remoteCache = new RemoteCatalogCache(serverConnection);
 	} 
 	
 	/**
@@ -146,13 +388,19 @@ public class ServerCore {
 		
 		Thread exchangeThread = new Thread(new Runnable()  { 
 			public void run() {
-				exchangeServers(myServer);
+				exchangeServers(false);
 			}		
 		});
 		
 		Thread exchangeSThread = new Thread(new Runnable()  { 
 			public void run() {
-				exchangeSServers(mySServer);
+				exchangeServers(true);
+			}		
+		});
+		
+		Thread syncThread = new Thread(new Runnable()  { 
+			public void run() {
+				synchronizeReplicas();
 			}		
 		});
 		
@@ -166,17 +414,46 @@ public class ServerCore {
 			e.printStackTrace();
 		}
 		exchangeSThread.start();
+		syncThread.start();
+		if (ServerInfo.primary != null) {
+			new Thread(new Runnable() {
+				public void run() {
+					followPrimary();
+				}
+			}).start();
+		}
+		if (ServerInfo.remoteCache) {
+			new Thread(new Runnable() {
+				public void run() {
+					while(true) {
+						remoteCache.maintain(membership.list(), myServer);
+						try {
+							Thread.sleep(ServerInfo.replicationHeartbeat * 1000);   //milliseconds
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}).start();
+		}
 	}
 	
 	/**
-	 * The method issues an exchange command with a random server and provides it with a copy
-	 * of its entire server records. If the selected server is not reachable or a communication 
-	 * error occurs, then the selected server is removed from the server list and no further 
-	 * action is taken in this round.
+	 * The method exchanges the server list with a random server every ServerInfo.exchangeInterval.
+	 * It first sends the digests of its buckets; the other server answers with its entries in the 
+	 * buckets that differ and the list of those buckets, and gets our entries in them in a second 
+	 * exchange, so servers that already agree only send the digests. A server that doesn't know 
+	 * digests answers with a bare success and is sent the entire list, as before. 
+	 * If the selected server is not reachable or a communication error occurs, the failure is 
+	 * recorded by its circuit breaker, and the server is removed from the server list once it has 
+	 * been failing for ServerInfo.peerEvictionTime. A server whose circuit breaker is open is 
+	 * skipped until it is due for a probe.
 	 */
-	private void exchangeServers(ServerBean myServer) {
-		logger.debug("start to exchange insecure servers: ");
-		logger.debug("my insecure server:" + serverList);
+	private void exchangeServers(boolean secure) {
+		Membership servers = getMembership(secure);
+		String kind = secure ? "secure" : "insecure";
+		logger.debug("start to exchange " + kind + " servers: ");
+		logger.debug("my " + kind + " server:" + servers);
 		while(true) {
 			try {
 				Thread.sleep(ServerInfo.exchangeInterval * 1000);   //milliseconds
@@ -184,125 +461,288 @@ public class ServerCore {
 				e.printStackTrace();
 			}
 			
-			if (serverList.size() == 0) continue;
-			List<ServerBean> diedServer = new ArrayList<>(); 
-			JSONArray serverArray = new JSONArray(); 
+			ServerBean server = servers.randomPeer();
+			if (server == null) continue;
+			if (!serverConnection.getHealth(server, secure).allowRequest()) {
+				logger.debug("Circuit open, not exchanging with: " + server);
+				continue;
+			}
+			exchangeRounds.incrementAndGet();
+			
+			String legacyKey = (secure ? "secure " : "") + server;
+			StringBuilder builder = new StringBuilder("{\"command\":\"EXCHANGE\",");
+			if (legacyPeers.contains(legacyKey)) {
+				builder.append("\"serverList\":");
+				servers.writeEntries(null, builder);
+			} else {
+				builder.append("\"buckets\":[");
+				List<String> digests = servers.getDigests();
+				for (int i = 0; i < digests.size(); i++) {
+					if (i > 0) builder.append(',');
+					JsonWriter.quote(digests.get(i), builder);
+				}
+				builder.append("],\"serverList\":[]");
+				CatalogSummary peerSummary = peerSummaries.get(legacyKey);
+				builder.append(",\"knownSummary\":").append(peerSummary == null ? -1 : peerSummary.getVersion());
+			}
+			builder.append('}');
 			
-			synchronized(serverList) {
-				serverList.forEach(server -> {
-					JSONObject serverObject = new JSONObject();
-					try {
-						serverObject.put("hostname", server.getHostname());
-						serverObject.put("port", server.getPort());
-					} catch (JSONException e) { 
-						e.printStackTrace();
+			Command reply = request(server, builder.toString(), secure, exchangeBytes);
+			if (reply != null && !legacyPeers.contains(legacyKey)) {
+				if (reply.getSummary() != null) {
+					CatalogSummary peerSummary = CatalogSummary.parse(reply.getSummary(), reply.getSummaryVersion());
+					if (peerSummary != null)
+						peerSummaries.put(legacyKey, peerSummary);
+				} else if (reply.getNeed() != null && peerSummaries.containsKey(legacyKey)) {
+					peerSummaries.get(legacyKey).touch();
+				}
+				if (reply.hasServerList() && reply.getServerVersions() != null) {
+					List<ServerBean> serverList = reply.getServerList();
+					for (int i = 0; i < serverList.size(); i++) {
+						ServerCommandProcessor.getInstance().addServer(serverList.get(i), reply.getServerVersions().get(i), secure);
 					}
-					serverArray.add(serverObject);
-				});
+				}
+				if (reply.getNeed() == null) {
+					// an older server, it only understands the entire list
+					legacyPeers.add(legacyKey);
+					builder = new StringBuilder("{\"command\":\"EXCHANGE\",\"serverList\":");
+					servers.writeEntries(null, builder);
+					reply = request(server, builder.append('}').toString(), secure, exchangeBytes);
+				} else if (reply.getNeed().size() > 0) {
+					builder = new StringBuilder("{\"command\":\"EXCHANGE\",\"serverList\":");
+					servers.writeEntries(reply.getNeed(), builder);
+					reply = request(server, builder.append('}').toString(), secure, exchangeBytes);
+				}
+			}
+			
+			// a peer is only dropped once its failures have lasted, not after a single blip
+			if (reply == null && serverConnection.getHealth(server, secure).shouldEvict()) {
+				servers.remove(server);
+				peerSummaries.remove(legacyKey);
+				serverConnection.getConnectionPool().evict(server, secure);
 			}
-	
-			Random random = new Random();
 			
-			int r = random.nextInt(serverList.size()); 
-			OrderedJSONObject messageObject = new OrderedJSONObject();
-			try { 
-				messageObject.put("command", "EXCHANGE");
-				messageObject.put("serverList", serverArray);
-			} catch (JSONException e) { 
+			if (ServerInfo.channelOwnership && !secure)
+				getRing();     // hands the channels whose owners changed over
+			
+			logger.debug("current " + kind + " servers:" + servers); 
+		}
+	}
+	
+	/**
+	 * The method compares the catalog with each replica every ServerInfo.syncInterval and forgets the 
+	 * removals older than ServerInfo.tombstoneTtl.
+	 */
+	private void synchronizeReplicas() {
+		while(true) {
+			try {
+				Thread.sleep(ServerInfo.syncInterval * 1000);   //milliseconds
+			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
-			Message message = new Message(MessageType.STRING, messageObject.toString(), null, null); // a copy of server list
-			List<Message> messages = serverConnection.establishConnection(serverList.get(r), message, false);  // issue an exchange cmd
-			if (messages.size() == 0) {
-				diedServer.add(serverList.get(r));
-			} else {
-				OrderedJSONObject resultObject;
+			catalogTree.purgeTombstones();
+			for (ServerBean replica : ServerInfo.replicas) {
+				if (!serverConnection.getHealth(replica, false).allowRequest())
+					continue;
+				// a replica sending something unexpected must not stop the others from being synchronized
 				try {
-					resultObject = new OrderedJSONObject(messages.get(0).getMessage());
-					if (!resultObject.containsKey("response") ||
-							(resultObject.containsKey("response") && !resultObject.get("response").equals("success")))
-						diedServer.add(serverList.get(r));
-				} catch (JSONException e) {
+					synchronize(replica);
+				} catch (Exception e) {
+					logger.error("Could not synchronize with: " + replica);
 					e.printStackTrace();
-				}				
-			} 
-			 
-			synchronized (serverList) {
-				serverList.removeAll(diedServer);
-			} 
-			
-			logger.debug("current insecure servers:" + serverList); 
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The method brings the catalog of this server and of a replica in step. The hashes of the catalog 
+	 * trees are compared from the root down, one level per request and only below the nodes that differ, 
+	 * then the entries of the differing leaves are swapped. Replicas that agree cost one request, 
+	 * replicas that disagree cost a request per level plus the entries of the leaves that differ.
+	 * @param replica
+	 */
+	private void synchronize(ServerBean replica) {
+		List<Integer> nodes = Collections.singletonList(0);
+		for (int level = 0; level <= catalogTree.getDepth(); level++) {
+			StringBuilder builder = syncRequest();
+			builder.append(",\"level\":").append(level).append(",\"nodes\":");
+			appendInts(nodes, builder);
+			Command reply = request(replica, builder.append('}').toString(), false, syncBytes);
+			if (reply == null || reply.getHashes() == null)
+				return;
+			nodes = catalogTree.differingNodes(level, nodes, reply.getHashes());
+			if (nodes.size() == 0)
+				return;
+			if (level < catalogTree.getDepth())
+				nodes = CatalogTree.children(nodes);
+		}
+		// a request opening a connection is written before the framing is negotiated, so it is kept 
+		// well under the 64KB of the old framing by sending the leaves in batches
+		List<Integer> batch = new ArrayList<>();
+		StringBuilder entries = new StringBuilder("[");
+		for (int i = 0; i < nodes.size(); i++) {
+			batch.add(nodes.get(i));
+			StringBuilder leafEntries = new StringBuilder();
+			CatalogTree.writeEntries(catalogTree.getEntries(Collections.singletonList(nodes.get(i))), leafEntries);
+			if (leafEntries.length() > 2) {
+				if (entries.length() > 1) entries.append(',');
+				entries.append(leafEntries, 1, leafEntries.length() - 1);
+			}
+			if (entries.length() < SYNC_BATCH_CHARS && i < nodes.size() - 1)
+				continue;
+			StringBuilder builder = syncRequest();
+			builder.append(",\"leaves\":");
+			appendInts(batch, builder);
+			builder.append(",\"entries\":").append(entries).append(']');
+			Command reply = request(replica, builder.append('}').toString(), false, syncBytes);
+			if (reply == null || reply.getEntries() == null)
+				return;
+			for (CatalogTree.Entry entry : reply.getEntries()) {
+				if (ServerCommandProcessor.getInstance().applyReplicated(entry))
+					syncedEntries.incrementAndGet();
+			}
+			batch.clear();
+			entries.setLength(1);
 		}
+		logger.debug("synchronized " + nodes.size() + " leaves with " + replica);
 	}
 	
-	private void exchangeSServers(ServerBean mySServer) {
-		logger.debug("start to exchange secure servers: ");
-		logger.debug("my secure server:" + serverSList);
+	/**
+	 * The method keeps this read replica connected to its primary. After a disconnection it asks for 
+	 * the changes after the last one it applied; the primary sends a snapshot instead if it no longer 
+	 * has them or restarted since. A primary silent for three heartbeats is reconnected to.
+	 */
+	private void followPrimary() {
 		while(true) {
+			CompletableFuture<Void> stopped = new CompletableFuture<>();
+			StringBuilder request = new StringBuilder("{\"command\":\"REPLICATE\",\"secret\":");
+			JsonWriter.quote(ServerInfo.secret, request);
+			if (primaryEpoch >= 0)
+				request.append(",\"epoch\":").append(primaryEpoch).append(",\"fromSequence\":").append(appliedSequence);
+			Message message = new Message(request.append('}').toString());
+			lastReplicated = System.currentTimeMillis();
+			Future<?> future = serverConnection.executePersistent(new Runnable() {
+				@Override
+				public void run() {
+					serverConnection.establishPersistentConnection(ServerInfo.primary, message, new PrimaryListener(), messageStream -> {}, stopped, false);
+				}
+			});
+			while (!future.isDone()) {
+				try {
+					future.get(ServerInfo.replicationHeartbeat, TimeUnit.SECONDS);
+				} catch (TimeoutException e) {
+					if (System.currentTimeMillis() - lastReplicated > ServerInfo.replicationHeartbeat * 3000L) {
+						logger.debug("No heartbeat from the primary, reconnecting: " + ServerInfo.primary);
+						stopped.complete(null);
+					}
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+			stopped.complete(null);
 			try {
-				Thread.sleep(ServerInfo.exchangeInterval * 1000);   //milliseconds
+				Thread.sleep(ServerInfo.connectionInterval * 1000);   //milliseconds
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
-			if (serverSList.size() == 0) continue; 
-			List<ServerBean> diedSServer = new ArrayList<>(); 
-			JSONArray serverSArray = new JSONArray();
-
-			synchronized(serverSList) {
-				serverSList.forEach(server -> {
-					JSONObject serverObject = new JSONObject();
-					try {
-						serverObject.put("hostname", server.getHostname());
-						serverObject.put("port", server.getPort());
-					} catch (JSONException e) { 
-						e.printStackTrace();
+		}
+	}
+	
+	// applies the stream of the primary: a snapshot first if the primary sends one, then the changes
+	private class PrimaryListener implements ServerConnection.MessageListener {
+		private List<Resource> snapshot = null;
+		
+		@Override
+		public boolean onMessageReceived(Message message, MessageStream messageStream) {
+			lastReplicated = System.currentTimeMillis();
+			try {
+				if (snapshot != null && message.getType() == MessageType.RESOURCE) {
+					snapshot.add(message.getResource());
+					return false;
+				}
+				if (message.getType() != MessageType.STRING)
+					return false;
+				if (snapshot != null && !message.getMessage().contains("\"snapshotEnd\"")) {
+					Resource resource = Resource.parseJson(new JsonReader(message.getMessage()));
+					if (resource != null)
+						snapshot.add(resource);
+					return false;
+				}
+				Command line = Command.parseReply(message.getMessage());
+				if (line.getResponse() != null) {
+					if (!line.getResponse().equals("success"))
+						return true;
+					if (line.getEpoch() == null || line.getSequence() == null)
+						return invalidLine(message);
+					primaryEpoch = line.getEpoch();
+					primarySequence = line.getSequence();
+					if (line.isSnapshot())
+						snapshot = new ArrayList<>();
+				} else if (line.isSnapshotEnd()) {
+					if (snapshot == null || line.getSequence() == null)
+						return invalidLine(message);
+					ServerCommandProcessor.getInstance().applySnapshot(snapshot);
+					snapshot = null;
+					appliedSequence = line.getSequence();
+				} else if (line.getSequence() != null) {
+					primarySequence = Math.max(primarySequence, line.getSequence());
+					if (line.getResource() != null) {
+						ServerCommandProcessor.getInstance().applyMutation(line.getResource(), line.isDeleted());
+						appliedSequence = line.getSequence();
 					}
-					serverSArray.add(serverObject);
-				});
-			}
-
-			Random random = new Random();
-			 
-			int rs = random.nextInt(serverSList.size()); 
-			OrderedJSONObject messageSObject = new OrderedJSONObject();
-			try { 
-				messageSObject.put("command", "EXCHANGE");
-				messageSObject.put("serverList", serverSArray);
-			} catch (JSONException e) { 
+				}
+				return false;
+			} catch (JSONException e) {
 				e.printStackTrace();
+				return true;
 			}
-			Message smessage = new Message(MessageType.STRING, messageSObject.toString(), null, null); // a copy of server list
-			List<Message> smessages = serverConnection.establishConnection(serverSList.get(rs), smessage, true);  // issue an exchange cmd
-			
-			if (smessages.size() == 0) {
-				diedSServer.add(serverSList.get(rs));
-			} else {
-				OrderedJSONObject resultObject;
-				try {
-					resultObject = new OrderedJSONObject(smessages.get(0).getMessage());
-					if (!resultObject.containsKey("response") ||
-							(resultObject.containsKey("response") && !resultObject.get("response").equals("success")))
-						diedSServer.add(serverSList.get(rs));
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}				
-			}  
-			synchronized (serverSList) {
-				serverSList.removeAll(diedSServer);
-			} 			
-			logger.debug("current secure servers:" + serverSList);
 		}
+		
+		// the stream is dropped and followed again from a snapshot
+		private boolean invalidLine(Message message) {
+			logger.error("Invalid line from the primary: " + message.getMessage());
+			primaryEpoch = -1;
+			snapshot = null;
+			return true;
+		}
+	}
+	
+	private static StringBuilder syncRequest() {
+		StringBuilder builder = new StringBuilder("{\"command\":\"SYNC\",\"secret\":");
+		JsonWriter.quote(ServerInfo.secret, builder);
+		return builder;
+	}
+	
+	private static void appendInts(List<Integer> ints, StringBuilder builder) {
+		builder.append('[');
+		for (int i = 0; i < ints.size(); i++) {
+			if (i > 0) builder.append(',');
+			builder.append(ints.get(i));
+		}
+		builder.append(']');
+	}
+	
+	/**
+	 * The method sends one command to another server and reads the reply.
+	 * @param bytes the counter of the bytes sent and received
+	 * @return the reply, or null if the server didn't answer with a success
+	 */
+	private Command request(ServerBean server, String command, boolean secure, AtomicLong bytes) {
+		bytes.addAndGet(command.length());
+		Message message = new Message(MessageType.STRING, command, null, null);
+		List<Message> messages = serverConnection.establishConnection(server, message, secure);  // issue the cmd
+		if (messages.size() == 0)
+			return null;     // already counted as a failure by the connection
+		bytes.addAndGet(messages.get(0).getMessage().length());
+		try {
+			Command reply = Command.parseReply(messages.get(0).getMessage());
+			if ("success".equals(reply.getResponse()))
+				return reply;
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		serverConnection.getHealth(server, secure).recordFailure();
+		return null;
 	}
 }
-
-
-
-
-
-
-
-
-
-
-
-
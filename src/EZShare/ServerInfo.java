@@ -7,6 +7,8 @@ package EZShare;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public class ServerInfo {
@@ -18,6 +20,51 @@ public class ServerInfo {
 	public static int port = 3000;
 	public static boolean debug = false; 
 	public static int sport = 3781;
+	public static int maxConnectionsPerPeer = 4;
+	public static int connectionIdleTimeout = 60;  //sec
+	public static int keepAliveTimeout = 45;  //sec a connection kept alive for another server waits for its next command, under its connectionIdleTimeout
+	public static int sslSessionCacheSize = 10000;
+	public static int sslSessionTimeout = 86400;  //sec
+	public static int outputBufferSize = 16 * 1024;  //bytes, replies are flushed when full or complete
+	public static int fileBufferSize = 64 * 1024;  //bytes
+	public static int maxFrameSize = 64 * 1024;  //bytes, length-prefixed frames from clients, as the legacy framing
+	public static int maxPeerFrameSize = 64 * 1024 * 1024;  //bytes, length-prefixed frames from other servers
+	public static boolean compression = true;  //offer and accept deflate on length-prefixed connections
+	public static int compressionLevel = 1;  //java.util.zip.Deflater level, favour CPU over ratio
+	public static int dnsTtl = 300;  //sec, resolved hostnames are refreshed in the background after it
+	public static int queryDeadline = 20;  //sec, a relayed query answers with what it has by then
+	public static int relayTimeout = 10;  //sec, per peer, to connect and between two lines
+	public static boolean hedging = true;  //send a second request to a peer slower than its own p95
+	public static int latencyMinSamples = 20;  //answers measured before a peer's percentiles are used
+	public static int breakerFailures = 3;  //failures in a row that open a peer's circuit breaker
+	public static int breakerOpenTime = 30;  //sec, before an open circuit breaker lets a probe through
+	public static int peerEvictionTime = 1800;  //sec of failures before a peer leaves the server list
+	public static int membershipBuckets = 64;  //buckets of the server list digests sent in an exchange
+	public static int summaryBits = 8192;  //size of the catalog summary sent in an exchange
+	public static int summaryTtl = 0;  //sec a peer's catalog summary is used to skip it, 0 to relay to every peer
+	public static List<ServerBean> replicas = new ArrayList<>();  //servers keeping the same catalog, started with the same secret
+	public static int syncInterval = 60;  //sec between two comparisons of the catalog with each replica
+	public static int syncDepth = 3;  //levels of the catalog tree below the root, 16^syncDepth leaves, the same on every replica
+	public static int tombstoneTtl = 86400;  //sec a removal is kept to be sent to the replicas
+	public static ServerBean primary = null;  //server this one is a read replica of, started with the same secret
+	public static int mutationLogSize = 100000;  //catalog changes kept for read replicas catching up
+	public static int replicationHeartbeat = 5;  //sec, a read replica reconnects after three without a word
+	public static boolean channelOwnership = false;  //channels are stored by and queried on their owners on a hash ring
+	public static int replicationFactor = 2;  //owners of each channel in channel ownership mode
+	public static int virtualNodes = 64;  //places of each server on the hash ring
+	public static boolean publicStream = false;  //REPLICATE with "public":true and the secret is answered, owners masked, for remote catalog caches
+	public static int maxReplicationStreams = 32;  //REPLICATE streams open at a time, each holds a thread
+	public static boolean remoteCache = false;  //relayed queries are answered from followed copies of the catalogs of the other servers
+	public static int remoteCacheSize = 100000;  //resources kept in the copies of all the other servers
+	public static int remoteCachePeers = 32;  //servers followed at most
+	public static int remoteCacheStaleness = 30;  //sec, a copy not heard from for longer is not used
+	public static int notificationQueueSize = 1000;  //notifications waiting to be written to each subscriber
+	public static String slowConsumerPolicy = NotificationQueue.DISCONNECT;  //when a subscriber's queue is full: dropOldest, coalesce or disconnect
+	public static int maxBatchLatency = 1000;  //ms, the longest batching window a subscription may ask for
+	public static int maxBatchSize = 500;  //notifications in a batch at most, also the size of a batch not given by the subscription
+	public static int relayQueueSize = 1024;  //relayed results waiting to be written to the client
+	public static boolean deduplicateResults = false;  //drop results with the same channel, uri and ezserver
+	public static int dnsNegativeTtl = 10;  //sec, unresolvable hostnames are retried after it
 	/*
 	static {
 		try {
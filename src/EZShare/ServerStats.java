@@ -0,0 +1,76 @@
+/**
+ * The class collects the counters the server exports through the STATS command, so that
+ * the effect of the connection and relay settings can be watched on a running federation.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.OrderedJSONObject;
+
+public class ServerStats {
+
+	/**
+	 * The method builds the reply of the STATS command.
+	 * @return jsonObject the response with every counter
+	 */
+	public static OrderedJSONObject toJson() {
+		OrderedJSONObject jsonObject = new OrderedJSONObject();
+		try {
+			jsonObject.put("response", "success");
+			jsonObject.put("tlsHandshakes", SSLConfig.getHandshakes());
+			jsonObject.put("tlsResumedHandshakes", SSLConfig.getResumedHandshakes());
+			jsonObject.put("tlsResumptionRate", SSLConfig.getResumptionRate());
+			jsonObject.put("coalescedQueries", ServerCommandProcessor.getCoalescedQueries());
+			jsonObject.put("prunedRelays", ServerCommandProcessor.getPrunedRelays());
+			jsonObject.put("skippedRequests", ServerConnection.getSkippedRequests());
+			jsonObject.put("hedgedRequests", ServerConnection.getHedgedRequests());
+			jsonObject.put("exchangeRounds", ServerCore.getExchangeRounds());
+			jsonObject.put("exchangeBytes", ServerCore.getExchangeBytes());
+			jsonObject.put("syncBytes", ServerCore.getSyncBytes());
+			jsonObject.put("syncedEntries", ServerCore.getSyncedEntries());
+			jsonObject.put("forwardedChanges", ServerCore.getForwardedChanges());
+			jsonObject.put("movedResources", ServerCore.getMovedResources());
+			jsonObject.put("mutationSequence", ServerCore.getInstance().getMutationLog().getSequence());
+			jsonObject.put("readReplicas", ServerCommandProcessor.getReadReplicas());
+			jsonObject.put("replicationLag", ServerCore.getInstance().getReplicationLag());
+			jsonObject.put("replicationAgeMillis", ServerCore.getInstance().getReplicationAge());
+			jsonObject.put("remoteCacheAnswers", RemoteCatalogCache.getCachedAnswers());
+			jsonObject.put("remoteCacheEntries", ServerCore.getInstance().getRemoteCache().size());
+			jsonObject.put("remoteCacheDrops", RemoteCatalogCache.getDroppedCopies());
+			jsonObject.put("droppedNotifications", NotificationQueue.getDroppedNotifications());
+			jsonObject.put("coalescedNotifications", NotificationQueue.getCoalescedNotifications());
+			jsonObject.put("slowConsumers", NotificationQueue.getSlowConsumers());
+			jsonObject.put("relayedSubscriptions", ServerCommandProcessor.getInstance().getRelaySubscriptions().size());
+			jsonObject.put("relayedSubscribers", ServerCommandProcessor.getInstance().getRelaySubscriptions().getAttachments());
+			jsonObject.put("subscriptions", subscriptions());
+			jsonObject.put("flushes", Communication.getFlushes());
+			jsonObject.put("bytesSent", Communication.getBytesSent());
+			jsonObject.put("uncompressedBytes", MessageStream.getUncompressedBytes());
+			jsonObject.put("compressedBytes", MessageStream.getCompressedBytes());
+			jsonObject.put("compressionMillis", MessageStream.getCompressionNanos() / 1000000);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return jsonObject;
+	}
+
+	// the queue of each subscription open on this server
+	private static JSONArray subscriptions() throws JSONException {
+		JSONArray subscriptions = new JSONArray();
+		for (ServerCommandProcessor.Subscriber subscriber : ServerCommandProcessor.getInstance().getSubscribers()) {
+			NotificationQueue queue = subscriber.getQueue();
+			OrderedJSONObject subscription = new OrderedJSONObject();
+			subscription.put("id", subscriber.getId());
+			subscription.put("queued", queue.size());
+			subscription.put("delivered", queue.getDelivered());
+			subscription.put("dropped", queue.getDropped());
+			subscription.put("coalesced", queue.getCoalesced());
+			subscriptions.add(subscription);
+		}
+		return subscriptions;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * The class indexes the subscriptions by the channel and the tags of their templates, so that a
+ * published resource is only matched against the subscriptions that could match it: those of its
+ * channel with no tags, and those of its channel with one of its tags. The subscriptions found still
+ * check the rest of their template.
+ * @author Sheng Wu
+ * @version 2.1 19/10/2026
+ */
+
+package EZShare;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SubscriptionIndex<T> {
+	private final Map<String, Channel<T>> channels = new HashMap<>();
+	private int size = 0;
+
+	/**
+	 * @param subscription
+	 * @param channel the channel of its template
+	 * @param tags the tags of its template, one of them must be a tag of a resource for it to match
+	 */
+	public synchronized void add(T subscription, String channel, List<String> tags) {
+		Channel<T> entry = channels.computeIfAbsent(channel, key -> new Channel<>());
+		if (tags.isEmpty()) {
+			entry.anyTag.add(subscription);
+		} else {
+			for (String tag : tags) {
+				entry.byTag.computeIfAbsent(tag, key -> new LinkedHashSet<>()).add(subscription);
+			}
+		}
+		size++;
+	}
+
+	/**
+	 * @param subscription
+	 * @param channel the same channel as when it was added
+	 * @param tags the same tags as when it was added
+	 */
+	public synchronized void remove(T subscription, String channel, List<String> tags) {
+		Channel<T> entry = channels.get(channel);
+		if (entry == null)
+			return;
+		boolean removed = entry.anyTag.remove(subscription);
+		for (String tag : tags) {
+			Set<T> subscriptions = entry.byTag.get(tag);
+			if (subscriptions != null && subscriptions.remove(subscription)) {
+				removed = true;
+				if (subscriptions.isEmpty())
+					entry.byTag.remove(tag);
+			}
+		}
+		if (removed)
+			size--;
+		if (entry.anyTag.isEmpty() && entry.byTag.isEmpty())
+			channels.remove(channel);
+	}
+
+	/**
+	 * @param resource a resource published or shared
+	 * @return the subscriptions that could match it, each once
+	 */
+	public synchronized Set<T> candidates(Resource resource) {
+		Set<T> candidates = new LinkedHashSet<>();
+		Channel<T> entry = channels.get(resource.getChannel());
+		if (entry == null)
+			return candidates;
+		candidates.addAll(entry.anyTag);
+		if (!entry.byTag.isEmpty()) {
+			for (String tag : resource.getTags()) {
+				Set<T> subscriptions = entry.byTag.get(tag);
+				if (subscriptions != null)
+					candidates.addAll(subscriptions);
+			}
+		}
+		return candidates;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private static class Channel<T> {
+		private final Set<T> anyTag = new LinkedHashSet<>();
+		private final Map<String, Set<T>> byTag = new HashMap<>();
+	}
+}